@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.id1212.rmi.common.Credentials;
+
+/**
+ * Measures the time it takes for a broadcast to return, with different numbers of participants in
+ * the room. Participants are in-process stub clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark {
+    private static final String ROOM_NAME = "bench";
+    private static final String SENDER = "bench";
+    private static final String MSG = "a typical chat message of moderate length";
+    @Param({"10", "100", "1000"})
+    private int participantCount;
+    private ExecutorService deliveryExecutor;
+    private Room room;
+
+    @Setup(Level.Trial)
+    public void createParticipants() throws IOException {
+        deliveryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        ParticipantManager mgr = new ParticipantManager(roomName -> new Conversation(),
+                                                        DeliveryPolicy.DEFAULT,
+                                                        FloodControl.UNLIMITED, deliveryExecutor);
+        room = mgr.findOrCreateRoom(ROOM_NAME);
+        for (int i = 0; i < participantCount; i++) {
+            long id = mgr.createParticipant(new StubClient(), new Credentials("user" + i, ""));
+            mgr.findParticipant(id).joinRoom(room);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDelivery() {
+        deliveryExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast(SENDER, MSG);
+    }
+}
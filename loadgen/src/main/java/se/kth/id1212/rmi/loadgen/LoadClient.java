@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.loadgen;
+
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+
+/**
+ * A headless chat client, which prints nothing. Messages sent by the load generator carry the
+ * time they were sent, and the time until they are received is recorded. All other messages, like
+ * join and leave notices, are ignored.
+ * <p>
+ * All simulated users run in the same JVM as the load generator, which means the send time can
+ * be read with <code>System.nanoTime</code>, even if the server runs in another JVM.
+ */
+class LoadClient implements ChatClient {
+    static final String MSG_PREFIX = "lg ";
+    private final LoadStats stats;
+
+    LoadClient(LoadStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Creates the body of a message that is measured when it is received.
+     *
+     * @return A message body holding the current time.
+     */
+    static String timestampedBody() {
+        return MSG_PREFIX + System.nanoTime();
+    }
+
+    @Override
+    public void recvMsg(String msg) {
+    }
+
+    @Override
+    public void recvMessages(ChatMessage[] msgs) {
+        long now = System.nanoTime();
+        for (ChatMessage msg : msgs) {
+            String body = msg.getBody();
+            if (body.startsWith(MSG_PREFIX)) {
+                stats.messageReceived(now - Long.parseLong(body.substring(MSG_PREFIX.length())));
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.loadgen;
+
+import java.util.concurrent.atomic.LongAdder;
+import se.kth.id1212.rmi.server.metrics.LatencyHistogram;
+import se.kth.id1212.rmi.server.metrics.LatencySnapshot;
+
+/**
+ * Everything measured during a load run. All counters are shared by all simulated users, and are
+ * updated without locking.
+ */
+class LoadStats {
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder leaveFailures = new LongAdder();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    void messageSent(int roomSize) {
+        sent.increment();
+        expected.add(roomSize);
+    }
+
+    void messageRejected() {
+        rejected.increment();
+    }
+
+    void sendFailed() {
+        sendFailures.increment();
+    }
+
+    void messageReceived(long nanos) {
+        received.increment();
+        endToEnd.record(nanos);
+    }
+
+    void loginFailed() {
+        loginFailures.increment();
+    }
+
+    void leaveFailed() {
+        leaveFailures.increment();
+    }
+
+    long getSent() {
+        return sent.sum();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    long getReceived() {
+        return received.sum();
+    }
+
+    long getExpected() {
+        return expected.sum();
+    }
+
+    long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    long getLeaveFailures() {
+        return leaveFailures.sum();
+    }
+
+    LatencySnapshot getEndToEndLatency() {
+        return endToEnd.snapshot();
+    }
+}
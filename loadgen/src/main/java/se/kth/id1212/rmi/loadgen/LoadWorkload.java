@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.loadgen;
+
+/**
+ * Describes the workload of a load run. Users are spread evenly over the rooms, and each user
+ * sends the same number of messages.
+ */
+class LoadWorkload {
+    private final int users;
+    private final int rooms;
+    private final int messagesPerUser;
+    private final long intervalMillis;
+    private final long drainMillis;
+
+    /**
+     * Creates a new instance with the specified workload.
+     *
+     * @param users           The number of simulated users.
+     * @param rooms           The number of rooms the users are spread over.
+     * @param messagesPerUser The number of messages each user sends.
+     * @param intervalMillis  The pause, in milliseconds, after each sent message.
+     * @param drainMillis     How long, in milliseconds, users stay in their room after everyone
+     *                        has stopped sending, waiting for outstanding messages.
+     */
+    LoadWorkload(int users, int rooms, int messagesPerUser, long intervalMillis,
+                 long drainMillis) {
+        this.users = users;
+        this.rooms = rooms;
+        this.messagesPerUser = messagesPerUser;
+        this.intervalMillis = intervalMillis;
+        this.drainMillis = drainMillis;
+    }
+
+    int getUsers() {
+        return users;
+    }
+
+    int getRooms() {
+        return rooms;
+    }
+
+    int getMessagesPerUser() {
+        return messagesPerUser;
+    }
+
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    long getDrainMillis() {
+        return drainMillis;
+    }
+
+    /**
+     * @param user The index of a user.
+     * @return The name of the room joined by the specified user.
+     */
+    String roomOf(int user) {
+        return "load" + (user % rooms);
+    }
+
+    /**
+     * @param user The index of a user.
+     * @return The number of users in the room joined by the specified user.
+     */
+    int roomSizeOf(int user) {
+        int room = user % rooms;
+        return users / rooms + (room < users % rooms ? 1 : 0);
+    }
+}
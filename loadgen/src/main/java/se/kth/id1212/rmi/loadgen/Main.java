@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.loadgen;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import se.kth.id1212.rmi.client.net.SocketChatServer;
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatServer;
+import se.kth.id1212.rmi.common.Protocol;
+import se.kth.id1212.rmi.server.controller.Controller;
+import se.kth.id1212.rmi.server.model.Conversation;
+import se.kth.id1212.rmi.server.model.DeliveryPolicy;
+import se.kth.id1212.rmi.server.model.FloodControl;
+
+/**
+ * Runs a chat workload with many simulated users, and reports throughput, end-to-end latency and
+ * errors. Each user is a headless <code>ChatClient</code> running in its own virtual thread. The
+ * load generator is configured with the following system properties, all of which are optional.
+ * <ul>
+ * <li><code>loadgen.transport</code> How the server is reached. Either <code>inprocess</code>,
+ * which starts a server without flood control in the load generator's JVM and calls it directly,
+ * <code>rmi</code>, which looks up a running server in the RMI registry, or <code>socket</code>,
+ * which connects each user to a running server over its own socket. The default is
+ * <code>inprocess</code>.</li>
+ * <li><code>loadgen.host</code> The host where the server is running. The default is
+ * <code>localhost</code>.</li>
+ * <li><code>loadgen.port</code> The port on which the server accepts socket clients. The default
+ * is 4712.</li>
+ * <li><code>loadgen.users</code> The number of simulated users. The default is 1000.</li>
+ * <li><code>loadgen.rooms</code> The number of rooms the users are spread over. The default is one
+ * room per 100 users.</li>
+ * <li><code>loadgen.messages</code> The number of messages each user sends. The default is
+ * 10.</li>
+ * <li><code>loadgen.intervalMillis</code> The pause, in milliseconds, after each sent message. The
+ * default is 100.</li>
+ * <li><code>loadgen.drainMillis</code> How long, in milliseconds, users wait for outstanding
+ * messages before leaving. The default is 2000.</li>
+ * </ul>
+ * A server started with the default flood control limits rejects much of the load, start it with
+ * <code>-Dchat.flood.rate=0 -Dchat.flood.globalRate=0</code> to measure delivery alone.
+ */
+public class Main {
+    private static final String IN_PROCESS_TRANSPORT = "inprocess";
+    private static final String RMI_TRANSPORT = "rmi";
+    private static final String SOCKET_TRANSPORT = "socket";
+    private static final int USERS_PER_ROOM = 100;
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    /**
+     * @param args There are no command line arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            int users = Integer.getInteger("loadgen.users", 1000);
+            LoadWorkload workload = new LoadWorkload(
+                    users, Integer.getInteger("loadgen.rooms", Math.max(users / USERS_PER_ROOM, 1)),
+                    Integer.getInteger("loadgen.messages", 10),
+                    Long.getLong("loadgen.intervalMillis", 100),
+                    Long.getLong("loadgen.drainMillis", 2000));
+            new Main().run(System.getProperty("loadgen.transport", IN_PROCESS_TRANSPORT),
+                           workload);
+            System.exit(0);
+        } catch (IOException | NotBoundException | InterruptedException e) {
+            System.out.println("Load run failed.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void run(String transport, LoadWorkload workload)
+            throws IOException, NotBoundException, InterruptedException {
+        LoadStats stats = new LoadStats();
+        ChatClient client = new LoadClient(stats);
+        ChatServer sharedServer = null;
+        if (transport.equals(IN_PROCESS_TRANSPORT)) {
+            sharedServer = new Controller(roomName -> new Conversation(), DeliveryPolicy.DEFAULT,
+                                          FloodControl.UNLIMITED,
+                                          Executors.newVirtualThreadPerTaskExecutor());
+        } else if (transport.equals(RMI_TRANSPORT)) {
+            UnicastRemoteObject.exportObject(client, 0);
+            sharedServer = (ChatServer) Naming.lookup(
+                    "//" + System.getProperty("loadgen.host", "localhost") + "/"
+                    + ChatServer.SERVER_NAME_IN_REGISTRY);
+        } else if (!transport.equals(SOCKET_TRANSPORT)) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+
+        CountDownLatch loggedIn = new CountDownLatch(workload.getUsers());
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch doneSending = new CountDownLatch(workload.getUsers());
+        List<Thread> threads = new ArrayList<>(workload.getUsers());
+        List<Closeable> connections = new ArrayList<>();
+        for (int i = 0; i < workload.getUsers(); i++) {
+            ChatServer server = sharedServer;
+            if (server == null) {
+                SocketChatServer connection = new SocketChatServer(
+                        System.getProperty("loadgen.host", "localhost"),
+                        Integer.getInteger("loadgen.port", Protocol.DEFAULT_PORT));
+                connections.add(connection);
+                server = connection;
+            }
+            SimulatedUser user = new SimulatedUser(server, client, "user" + i, workload.roomOf(i),
+                                                   workload.roomSizeOf(i), workload, stats,
+                                                   loggedIn, start, doneSending);
+            threads.add(Thread.ofVirtual().name("user" + i).start(user));
+        }
+
+        loggedIn.await();
+        long startTime = System.nanoTime();
+        start.countDown();
+        doneSending.await();
+        double sendSeconds = (System.nanoTime() - startTime) / NANOS_PER_SECOND;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Closeable connection : connections) {
+            connection.close();
+        }
+        report(transport, workload, stats, sendSeconds);
+    }
+
+    private void report(String transport, LoadWorkload workload, LoadStats stats,
+                        double sendSeconds) {
+        System.out.println("transport=" + transport);
+        System.out.println("users=" + workload.getUsers());
+        System.out.println("rooms=" + workload.getRooms());
+        System.out.println("sendSeconds=" + String.format("%.3f", sendSeconds));
+        System.out.println("sent=" + stats.getSent());
+        System.out.println("sentPerSecond=" + String.format("%.1f", stats.getSent() / sendSeconds));
+        System.out.println("received=" + stats.getReceived());
+        System.out.println("expected=" + stats.getExpected());
+        System.out.println("receivedPerSecond="
+                           + String.format("%.1f", stats.getReceived() / sendSeconds));
+        System.out.println("endToEndLatency=" + stats.getEndToEndLatency());
+        System.out.println("loginFailures=" + stats.getLoginFailures());
+        System.out.println("rejected=" + stats.getRejected());
+        System.out.println("sendFailures=" + stats.getSendFailures());
+        System.out.println("leaveFailures=" + stats.getLeaveFailures());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.loadgen;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatServer;
+import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.FloodControlException;
+import se.kth.id1212.rmi.common.MessageException;
+
+/**
+ * One simulated user, which logs in, joins a room, sends messages and then leaves. All users log
+ * in before anyone starts sending, and no one leaves until everyone has stopped sending, which
+ * means every member of a room is expected to receive every message sent to that room.
+ */
+class SimulatedUser implements Runnable {
+    private final ChatServer server;
+    private final ChatClient client;
+    private final String username;
+    private final String room;
+    private final int roomSize;
+    private final LoadWorkload workload;
+    private final LoadStats stats;
+    private final CountDownLatch loggedIn;
+    private final CountDownLatch start;
+    private final CountDownLatch doneSending;
+
+    SimulatedUser(ChatServer server, ChatClient client, String username, String room, int roomSize,
+                  LoadWorkload workload, LoadStats stats, CountDownLatch loggedIn,
+                  CountDownLatch start, CountDownLatch doneSending) {
+        this.server = server;
+        this.client = client;
+        this.username = username;
+        this.room = room;
+        this.roomSize = roomSize;
+        this.workload = workload;
+        this.stats = stats;
+        this.loggedIn = loggedIn;
+        this.start = start;
+        this.doneSending = doneSending;
+    }
+
+    @Override
+    public void run() {
+        long id;
+        try {
+            id = server.login(client, new Credentials(username, ""));
+            server.joinRoom(id, room);
+        } catch (RemoteException | MessageException e) {
+            stats.loginFailed();
+            loggedIn.countDown();
+            doneSending.countDown();
+            return;
+        }
+        try {
+            loggedIn.countDown();
+            start.await();
+            sendMessages(id);
+            doneSending.countDown();
+            doneSending.await();
+            Thread.sleep(workload.getDrainMillis());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            server.leaveConversation(id);
+        } catch (RemoteException | MessageException e) {
+            stats.leaveFailed();
+        }
+    }
+
+    private void sendMessages(long id) throws InterruptedException {
+        for (int i = 0; i < workload.getMessagesPerUser(); i++) {
+            try {
+                server.broadcastMsg(id, room, LoadClient.timestampedBody());
+                stats.messageSent(roomSize);
+            } catch (FloodControlException fce) {
+                stats.messageRejected();
+            } catch (RemoteException | MessageException e) {
+                stats.sendFailed();
+            }
+            TimeUnit.MILLISECONDS.sleep(workload.getIntervalMillis());
+        }
+    }
+}
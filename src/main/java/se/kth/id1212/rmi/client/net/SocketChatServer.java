@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.client.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.ChatServer;
+import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.FrameReader;
+import se.kth.id1212.rmi.common.FrameWriter;
+import se.kth.id1212.rmi.common.HistoryPage;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.common.Protocol;
+
+/**
+ * A chat server reached over a plain socket, speaking the framed protocol defined in
+ * <code>Protocol</code>. This is an alternative to looking up the server in the RMI registry, an
+ * instance can be used wherever a <code>ChatServer</code> stub can.
+ * <p>
+ * Each method sends a request frame and waits for the response. Chat messages pushed by the
+ * server are read by a virtual thread, and passed to the <code>ChatClient</code> specified at
+ * login.
+ */
+public class SocketChatServer implements ChatServer, Closeable {
+    private static final ResultReader<Void> NO_RESULT = result -> null;
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<FrameReader>> pendingRequests
+            = new ConcurrentHashMap<>();
+    private volatile ChatClient remoteNode;
+    private volatile boolean closed;
+
+    /**
+     * Connects to the chat server at the specified address.
+     *
+     * @param host The host where the server is running.
+     * @param port The port on which the server accepts socket clients.
+     * @throws IOException If the connection could not be established.
+     */
+    public SocketChatServer(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        Thread.ofVirtual().name("socket-reader").start(this::readFrames);
+    }
+
+    @Override
+    public long login(ChatClient remoteNode, Credentials credentials) throws RemoteException {
+        this.remoteNode = remoteNode;
+        return call(newRequest(Protocol.LOGIN).putString(credentials.getUsername())
+                .putString(credentials.getPassword()), FrameReader::getLong);
+    }
+
+    @Override
+    public long resume(ChatClient remoteNode, Credentials credentials, long previousId,
+                       Map<String, Long> lastSeen) throws RemoteException {
+        this.remoteNode = remoteNode;
+        FrameWriter request = newRequest(Protocol.RESUME).putString(credentials.getUsername())
+                .putString(credentials.getPassword()).putLong(previousId).putInt(lastSeen.size());
+        for (Map.Entry<String, Long> room : lastSeen.entrySet()) {
+            request.putString(room.getKey()).putLong(room.getValue());
+        }
+        return call(request, FrameReader::getLong);
+    }
+
+    @Override
+    public void changeNickname(long id, String username) throws RemoteException {
+        call(newRequest(Protocol.CHANGE_NICKNAME).putLong(id).putString(username), NO_RESULT);
+    }
+
+    @Override
+    public void broadcastMsg(long id, String msg) throws RemoteException {
+        broadcastMsg(id, DEFAULT_ROOM, msg);
+    }
+
+    @Override
+    public void broadcastMsg(long id, String room, String msg) throws RemoteException {
+        call(newRequest(Protocol.BROADCAST).putLong(id).putString(room).putString(msg),
+             NO_RESULT);
+    }
+
+    @Override
+    public void sendDirectMsg(long id, String recipient, String msg) throws RemoteException {
+        call(newRequest(Protocol.DIRECT_MESSAGE).putLong(id).putString(recipient).putString(msg),
+             NO_RESULT);
+    }
+
+    @Override
+    public void joinRoom(long id, String room) throws RemoteException {
+        call(newRequest(Protocol.JOIN_ROOM).putLong(id).putString(room), NO_RESULT);
+    }
+
+    @Override
+    public void leaveRoom(long id, String room) throws RemoteException {
+        call(newRequest(Protocol.LEAVE_ROOM).putLong(id).putString(room), NO_RESULT);
+    }
+
+    @Override
+    public String[] listRooms() throws RemoteException {
+        return call(newRequest(Protocol.LIST_ROOMS), FrameReader::getStrings);
+    }
+
+    @Override
+    public HistoryPage getHistory(long id, String room, long before, int maxEntries)
+            throws RemoteException {
+        return call(newRequest(Protocol.GET_HISTORY).putLong(id).putString(room).putLong(before)
+                .putInt(maxEntries), result -> new HistoryPage(result.getStrings(),
+                                                               result.getLong(),
+                                                               result.getBoolean()));
+    }
+
+    @Override
+    public HistoryPage search(long id, String room, String keywords, String sender, long before,
+                              int maxEntries) throws RemoteException {
+        return call(newRequest(Protocol.SEARCH).putLong(id).putString(room).putString(keywords)
+                .putString(sender).putLong(before).putInt(maxEntries),
+                    result -> new HistoryPage(result.getStrings(), result.getLong(),
+                                              result.getBoolean()));
+    }
+
+    @Override
+    public void leaveConversation(long id) throws RemoteException {
+        call(newRequest(Protocol.LEAVE_CONVERSATION).putLong(id), NO_RESULT);
+    }
+
+    @Override
+    public void ping(long id) throws RemoteException {
+        call(newRequest(Protocol.PING).putLong(id), NO_RESULT);
+    }
+
+    /**
+     * Closes the connection to the server. Requests that are waiting for a response fail.
+     *
+     * @throws IOException If the connection could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private FrameWriter newRequest(byte type) {
+        return new FrameWriter(type, requestIds.incrementAndGet());
+    }
+
+    private <T> T call(FrameWriter request, ResultReader<T> resultReader)
+            throws RemoteException {
+        ByteBuffer frame = request.toBuffer();
+        int requestId = frame.getInt(Integer.BYTES + Byte.BYTES);
+        CompletableFuture<FrameReader> response = new CompletableFuture<>();
+        pendingRequests.put(requestId, response);
+        try {
+            synchronized (writeLock) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+            if (closed) {
+                failPendingRequests();
+            }
+            FrameReader result = response.get();
+            if (result.getType() == Protocol.ERROR) {
+                throw new MessageException(result.getString());
+            }
+            return resultReader.read(result);
+        } catch (IOException ioe) {
+            throw new RemoteException("Could not communicate with server.", ioe);
+        } catch (ExecutionException ee) {
+            throw new RemoteException("Could not communicate with server.", ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for server.", ie);
+        } finally {
+            pendingRequests.remove(requestId);
+        }
+    }
+
+    private void readFrames() {
+        ByteBuffer lengthField = ByteBuffer.allocate(Integer.BYTES);
+        try {
+            while (true) {
+                readFully(lengthField.clear());
+                int length = lengthField.getInt(0);
+                if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                readFully(frame);
+                handleFrame(new FrameReader(frame.array()));
+            }
+        } catch (IOException connectionLost) {
+            closed = true;
+            failPendingRequests();
+        }
+    }
+
+    private void handleFrame(FrameReader frame) throws IOException {
+        if (frame.getType() != Protocol.MESSAGES) {
+            CompletableFuture<FrameReader> response = pendingRequests.get(frame.getRequestId());
+            if (response != null) {
+                response.complete(frame);
+            }
+            return;
+        }
+        ChatMessage[] msgs = new ChatMessage[frame.getInt()];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i] = ChatMessage.fromBytes(frame.getBytes());
+        }
+        ChatClient receiver = remoteNode;
+        if (receiver != null) {
+            receiver.recvMessages(msgs);
+        }
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new IOException("Server closed the connection.");
+            }
+        }
+    }
+
+    private void failPendingRequests() {
+        IOException connectionLost = new IOException("Connection to server is closed.");
+        for (CompletableFuture<FrameReader> response : pendingRequests.values()) {
+            response.completeExceptionally(connectionLost);
+        }
+    }
+
+    private interface ResultReader<T> {
+        T read(FrameReader result) throws IOException;
+    }
+}
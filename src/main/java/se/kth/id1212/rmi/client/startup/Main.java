@@ -27,7 +27,15 @@ import java.rmi.RemoteException;
 import se.kth.id1212.rmi.client.view.NonBlockingInterpreter;
 
 /**
- * Starts the chat client.
+ * Starts the chat client. The transport used to reach the server is chosen with the following
+ * system properties, both of which are optional.
+ * <ul>
+ * <li><code>chat.transport</code> Either <code>rmi</code>, which looks up the server in the RMI
+ * registry, or <code>socket</code>, which connects to the server's socket transport. The default
+ * is <code>rmi</code>.</li>
+ * <li><code>chat.socket.port</code> The port of the server's socket transport. The default is
+ * 4712.</li>
+ * </ul>
  */
 public class Main {
     /**
@@ -23,17 +23,23 @@
  */
 package se.kth.id1212.rmi.client.view;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * One line of user input, which should be a command and parameters associated with that command (if
  * any).
+ * <p>
+ * The line is parsed in one single pass, which only records where the command and each parameter
+ * start and end. No strings are created while parsing, a parameter string is created the first
+ * time that parameter is requested.
  */
 class CmdLine {
-    private static final String PARAM_DELIMETER = " ";
+    private static final char PARAM_DELIMETER = ' ';
+    private static final char QUOTE = '\"';
+    private static final Command[] COMMANDS = Command.values();
+    private static final int INITIAL_PARAM_CAPACITY = 4;
+    private int[] paramBounds;
+    private int paramCount;
     private String[] params;
-    private Command cmd;
+    private Command cmd = Command.NO_COMMAND;
     private final String enteredLine;
 
     /**
@@ -43,8 +49,9 @@ class CmdLine {
      */
     CmdLine(String enteredLine) {
         this.enteredLine = enteredLine;
-        parseCmd(enteredLine);
-        extractParams(enteredLine);
+        if (enteredLine != null) {
+            parse(enteredLine);
+        }
     }
 
     /**
@@ -71,85 +78,118 @@ class CmdLine {
      *         with that index.
      */
     String getParameter(int index) {
-        if (params == null) {
+        if (index < 0 || index >= paramCount) {
             return null;
         }
-        if (index >= params.length) {
-            return null;
+        if (params == null) {
+            params = new String[paramCount];
+        }
+        if (params[index] == null) {
+            params[index] = createParam(paramBounds[2 * index], paramBounds[2 * index + 1]);
         }
         return params[index];
     }
 
-    private String removeExtraSpaces(String source) {
-        if (source == null) {
-            return source;
+    private void parse(String line) {
+        int end = line.length();
+        while (end > 0 && isBlank(line.charAt(end - 1))) {
+            end--;
+        }
+        int start = skipBlanks(line, 0, end);
+        int cmdEnd = line.indexOf(PARAM_DELIMETER, start);
+        if (cmdEnd < 0 || cmdEnd > end) {
+            cmdEnd = end;
         }
-        String oneOrMoreOccurences = "+";
-        return source.trim().replaceAll(PARAM_DELIMETER + oneOrMoreOccurences, PARAM_DELIMETER);
+        cmd = findCmd(line, start, cmdEnd);
+        if (cmd != Command.NO_COMMAND) {
+            start = skipBlanks(line, cmdEnd, end);
+        }
+        extractParams(line, start, end);
     }
 
-    private void parseCmd(String enteredLine) {
-        int cmdNameIndex = 0;
-        try {
-            String[] enteredTokens = removeExtraSpaces(enteredLine).split(PARAM_DELIMETER);
-            cmd = Command.valueOf(enteredTokens[cmdNameIndex].toUpperCase());
-        } catch (Throwable failedToReadCmd) {
-            cmd = Command.NO_COMMAND;
+    private Command findCmd(String line, int start, int end) {
+        int length = end - start;
+        for (Command candidate : COMMANDS) {
+            String name = candidate.name();
+            if (name.length() == length && line.regionMatches(true, start, name, 0, length)) {
+                return candidate;
+            }
         }
+        return Command.NO_COMMAND;
     }
 
-    private void extractParams(String enteredLine) {
-        if (enteredLine == null) {
+    private void extractParams(String line, int start, int end) {
+        if (start >= end) {
             return;
         }
-        String readyForParsing = removeExtraSpaces(removeCmd(enteredLine));
-        List<String> params = new ArrayList<>();
-        int start = 0;
+        int paramStart = start;
         boolean inQuotes = false;
-        for (int index = 0; index < readyForParsing.length(); index++) {
-            if (currentCharIsQuote(readyForParsing, index)) {
+        int index = start;
+        while (index < end) {
+            char current = line.charAt(index);
+            if (current == QUOTE) {
                 inQuotes = !inQuotes;
+            } else if (current == PARAM_DELIMETER && !inQuotes) {
+                addParam(paramStart, index);
+                while (line.charAt(index + 1) == PARAM_DELIMETER) {
+                    index++;
+                }
+                paramStart = index + 1;
             }
-            if (reachedEndOfString(readyForParsing, index)) {
-                addParam(params, readyForParsing, start, index);
-            } else if (timeToSplit(readyForParsing, index, inQuotes)) {
-                addParam(params, readyForParsing, start, index);
-                start = index + 1;
-            }
+            index++;
         }
-        this.params = params.toArray(new String[0]);
+        addParam(paramStart, end);
     }
 
-    private void addParam(List<String> params, String paramSource, int start, int index) {
-        if (reachedEndOfString(paramSource, index)) {
-            params.add(removeQuotes(paramSource.substring(start)));
-        } else {
-            params.add(removeQuotes(paramSource.substring(start, index)));
+    private void addParam(int start, int end) {
+        if (paramBounds == null) {
+            paramBounds = new int[2 * INITIAL_PARAM_CAPACITY];
+        } else if (2 * paramCount == paramBounds.length) {
+            int[] larger = new int[2 * paramBounds.length];
+            System.arraycopy(paramBounds, 0, larger, 0, paramBounds.length);
+            paramBounds = larger;
         }
+        paramBounds[2 * paramCount] = start;
+        paramBounds[2 * paramCount + 1] = end;
+        paramCount++;
     }
 
-    private boolean currentCharIsQuote(String readyForParsing, int index) {
-        return readyForParsing.charAt(index) == '\"';
-    }
-
-    private String removeCmd(String enteredLine) {
-        if (cmd == Command.NO_COMMAND) {
-            return enteredLine;
+    private String createParam(int start, int end) {
+        if (!needsCleaning(start, end)) {
+            return enteredLine.substring(start, end);
+        }
+        StringBuilder param = new StringBuilder(end - start);
+        for (int index = start; index < end; index++) {
+            char current = enteredLine.charAt(index);
+            boolean repeatedDelimeter = current == PARAM_DELIMETER
+                                        && enteredLine.charAt(index - 1) == PARAM_DELIMETER;
+            if (current != QUOTE && !repeatedDelimeter) {
+                param.append(current);
+            }
         }
-        int indexAfterCmd = enteredLine.toUpperCase().indexOf(cmd.name()) + cmd.name().length();
-        String withoutCmd = enteredLine.substring(indexAfterCmd, enteredLine.length());
-        return withoutCmd.trim();
+        return param.toString();
     }
 
-    private boolean timeToSplit(String source, int index, boolean dontSplit) {
-        return source.charAt(index) == PARAM_DELIMETER.charAt(0) && !dontSplit;
+    private boolean needsCleaning(int start, int end) {
+        for (int index = start; index < end; index++) {
+            char current = enteredLine.charAt(index);
+            if (current == QUOTE
+                || current == PARAM_DELIMETER && enteredLine.charAt(index - 1) == PARAM_DELIMETER) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private boolean reachedEndOfString(String source, int index) {
-        return index == (source.length() - 1);
+    private int skipBlanks(String line, int start, int end) {
+        int index = start;
+        while (index < end && isBlank(line.charAt(index))) {
+            index++;
+        }
+        return index;
     }
 
-    private String removeQuotes(String source) {
-        return source.replaceAll("\"", "");
+    private boolean isBlank(char c) {
+        return c <= PARAM_DELIMETER;
     }
 }
@@ -33,16 +33,51 @@ public enum Command {
     USER,
     /**
      * Establish a connection to the server. The first parameter is IP address (or host name), the
-     * second is port number.
+     * second is port number. The host name may be followed by a slash and the name of a server in
+     * a federation, for example <code>localhost/node2</code>.
      */
     LOGIN,
+    /**
+     * Join a chat room, which becomes the current room. All entries without a command are sent to
+     * the current room. The parameter is the name of the room, which is created if it does not
+     * exist.
+     */
+    JOIN,
+    /**
+     * Leave a chat room. The optional parameter is the name of the room, if it is not specified
+     * the current room is left. When the current room is left, the default room becomes the
+     * current room.
+     */
+    PART,
+    /**
+     * Send a direct message, which is seen by one user only. The first parameter is the username
+     * of the recipient, the remaining parameters are the message.
+     */
+    MSG,
+    /**
+     * List the names of all chat rooms.
+     */
+    ROOMS,
+    /**
+     * Show earlier entries of the current room's conversation. Each time this command is given,
+     * the page of entries immediately before those previously shown is displayed. The optional
+     * parameter is the number of entries to show.
+     */
+    HISTORY,
+    /**
+     * Search the current room's conversation for entries containing all the specified words. A
+     * parameter starting with <code>from:</code> specifies the sender, for example
+     * <code>search from:alice lunch</code>. The most recent matches are shown first, giving the
+     * same search again shows the page of matches immediately before those previously shown.
+     */
+    SEARCH,
     /**
      * Leave the chat application.
      */
     QUIT,
     /**
      * No command was specified. This means the entire command line is interpreted as an entry in
-     * the conversation, and is sent to all clients.
+     * the conversation, and is sent to all clients in the current room.
      */
     NO_COMMAND
 }
@@ -23,15 +23,24 @@
  */
 package se.kth.id1212.rmi.client.view;
 
-import java.net.MalformedURLException;
+import java.io.Closeable;
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import se.kth.id1212.rmi.client.net.SocketChatServer;
 import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
 import se.kth.id1212.rmi.common.ChatServer;
 import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.HistoryPage;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.common.Protocol;
 
 /**
  * Reads and interprets user commands. The command interpreter will run in a separate thread, which
@@ -41,27 +50,41 @@ import se.kth.id1212.rmi.common.Credentials;
  */
 public class NonBlockingInterpreter implements Runnable {
     private static final String PROMPT = "> ";
+    private static final int DEFAULT_HISTORY_PAGE_SIZE = 20;
+    private static final String SOCKET_TRANSPORT = "socket";
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 30_000;
+    private static final String SENDER_PREFIX = "from:";
     private final Scanner console = new Scanner(System.in);
     private final ThreadSafeStdOut outMgr = new ThreadSafeStdOut();
     private final ChatClient myRemoteObj;
-    private ChatServer server;
-    private long myIdAtServer;
-    private boolean receivingCmds = false;
+    private volatile ChatServer server;
+    private volatile long myIdAtServer;
+    private volatile boolean loggedIn;
+    private String currentRoom = ChatServer.DEFAULT_ROOM;
+    private long historyCursor;
+    private String lastSearch;
+    private long searchCursor;
+    private final Map<String, ReceivedSequences> received = new ConcurrentHashMap<>();
+    private String lastHost;
+    private volatile boolean receivingCmds = false;
 
     public NonBlockingInterpreter() throws RemoteException {
         myRemoteObj = new ConsoleOutput();
     }
 
     /**
-     * Starts the interpreter. The interpreter will be waiting for user input when this method
-     * returns. Calling <code>start</code> on an interpreter that is already started has no effect.
+     * Starts the interpreter, in a virtual thread. The interpreter will be waiting for user input
+     * when this method returns. Calling <code>start</code> on an interpreter that is already
+     * started has no effect. While logged in, the interpreter also pings the server regularly, in
+     * another virtual thread, to stay logged in when nothing is said.
      */
     public void start() {
         if (receivingCmds) {
             return;
         }
         receivingCmds = true;
-        new Thread(this).start();
+        Thread.ofVirtual().name("interpreter").start(this);
+        Thread.ofVirtual().name("heartbeat").start(this::sendHeartbeats);
     }
 
     /**
@@ -75,33 +98,168 @@ public class NonBlockingInterpreter implements Runnable {
                 switch (cmdLine.getCmd()) {
                     case QUIT:
                         receivingCmds = false;
+                        loggedIn = false;
                         server.leaveConversation(myIdAtServer);
                         boolean forceUnexport = false;
                         UnicastRemoteObject.unexportObject(myRemoteObj, forceUnexport);
+                        if (server instanceof Closeable) {
+                            ((Closeable) server).close();
+                        }
                         break;
                     case LOGIN:
-                        lookupServer(cmdLine.getParameter(0));
-                        myIdAtServer
-                                = server.login(myRemoteObj,
-                                               new Credentials(cmdLine.getParameter(1),
-                                                               cmdLine.getParameter(2)));
+                        login(cmdLine.getParameter(0), new Credentials(cmdLine.getParameter(1),
+                                                                       cmdLine.getParameter(2)));
+                        enterRoom(ChatServer.DEFAULT_ROOM);
+                        break;
+                    case JOIN:
+                        server.joinRoom(myIdAtServer, cmdLine.getParameter(0));
+                        received.putIfAbsent(cmdLine.getParameter(0), new ReceivedSequences());
+                        enterRoom(cmdLine.getParameter(0));
+                        break;
+                    case PART:
+                        String room = cmdLine.getParameter(0) == null ? currentRoom
+                                      : cmdLine.getParameter(0);
+                        server.leaveRoom(myIdAtServer, room);
+                        received.remove(room);
+                        if (room.equals(currentRoom)) {
+                            enterRoom(ChatServer.DEFAULT_ROOM);
+                        }
+                        break;
+                    case MSG:
+                        sendDirect(cmdLine);
+                        break;
+                    case ROOMS:
+                        outMgr.println(String.join(" ", server.listRooms()));
+                        break;
+                    case HISTORY:
+                        showHistory(cmdLine.getParameter(0));
+                        break;
+                    case SEARCH:
+                        search(cmdLine);
                         break;
                     case USER:
                         server.changeNickname(myIdAtServer, cmdLine.getParameter(0));
                         break;
                     default:
-                        server.broadcastMsg(myIdAtServer, cmdLine.getUserInput());
+                        server.broadcastMsg(myIdAtServer, currentRoom, cmdLine.getUserInput());
                 }
+            } catch (MessageException me) {
+                outMgr.println(me.getMessage());
             } catch (Exception e) {
                 outMgr.println("Operation failed");
             }
         }
     }
 
-    private void lookupServer(String host) throws NotBoundException, MalformedURLException,
-                                                  RemoteException {
-        server = (ChatServer) Naming.lookup(
-                "//" + host + "/" + ChatServer.SERVER_NAME_IN_REGISTRY);
+    /**
+     * Logs in to the server at the specified host. If this interpreter was already logged in to
+     * that host, the login resumes the previous session, and the server sends only the messages
+     * that were not received during that session.
+     */
+    private void login(String host, Credentials credentials) throws NotBoundException,
+                                                                    IOException {
+        lookupServer(host);
+        if (host.equals(lastHost) && !received.isEmpty()) {
+            Map<String, Long> lastSeen = new HashMap<>();
+            received.forEach((room, sequences) -> lastSeen.put(room, sequences.lastBeforeGap()));
+            myIdAtServer = server.resume(myRemoteObj, credentials, myIdAtServer, lastSeen);
+            loggedIn = true;
+            return;
+        }
+        received.clear();
+        lastHost = host;
+        myIdAtServer = server.login(myRemoteObj, credentials);
+        loggedIn = true;
+    }
+
+    private void sendHeartbeats() {
+        while (receivingCmds) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+                if (loggedIn) {
+                    server.ping(myIdAtServer);
+                }
+            } catch (InterruptedException ie) {
+                return;
+            } catch (Exception e) {
+                loggedIn = false;
+                outMgr.println("Lost contact with the server, log in again to resume.");
+            }
+        }
+    }
+
+    private void showHistory(String pageSize) throws RemoteException {
+        int maxEntries = pageSize == null ? DEFAULT_HISTORY_PAGE_SIZE : Integer.parseInt(pageSize);
+        HistoryPage page = server.getHistory(myIdAtServer, currentRoom, historyCursor,
+                                             maxEntries);
+        for (String entry : page.getEntries()) {
+            outMgr.println(entry);
+        }
+        historyCursor = page.getCursor();
+        if (!page.hasMore()) {
+            outMgr.println("No earlier entries.");
+        }
+    }
+
+    private void sendDirect(CmdLine cmdLine) throws RemoteException {
+        String recipient = cmdLine.getParameter(0);
+        StringBuilder msg = new StringBuilder();
+        String param;
+        for (int i = 1; (param = cmdLine.getParameter(i)) != null; i++) {
+            if (msg.length() > 0) {
+                msg.append(' ');
+            }
+            msg.append(param);
+        }
+        server.sendDirectMsg(myIdAtServer, recipient, msg.toString());
+        outMgr.println("[to " + recipient + "] " + msg);
+    }
+
+    private void search(CmdLine cmdLine) throws RemoteException {
+        String search = currentRoom + " " + cmdLine.getUserInput();
+        if (!search.equals(lastSearch)) {
+            lastSearch = search;
+            searchCursor = HistoryPage.AFTER_NEWEST;
+        }
+        StringBuilder keywords = new StringBuilder();
+        String sender = null;
+        String param;
+        for (int i = 0; (param = cmdLine.getParameter(i)) != null; i++) {
+            if (param.startsWith(SENDER_PREFIX)) {
+                sender = param.substring(SENDER_PREFIX.length());
+            } else {
+                keywords.append(param).append(' ');
+            }
+        }
+        HistoryPage page = server.search(myIdAtServer, currentRoom, keywords.toString(), sender,
+                                         searchCursor, DEFAULT_HISTORY_PAGE_SIZE);
+        for (String entry : page.getEntries()) {
+            outMgr.println(entry);
+        }
+        searchCursor = page.getCursor();
+        if (!page.hasMore()) {
+            outMgr.println("No earlier matches.");
+        }
+    }
+
+    private void enterRoom(String room) {
+        currentRoom = room;
+        historyCursor = HistoryPage.BEFORE_LOGIN_REPLAY;
+    }
+
+    private void lookupServer(String host) throws NotBoundException, IOException {
+        loggedIn = false;
+        if (server instanceof Closeable) {
+            ((Closeable) server).close();
+        }
+        if (SOCKET_TRANSPORT.equals(System.getProperty("chat.transport"))) {
+            server = new SocketChatServer(host, Integer.getInteger("chat.socket.port",
+                                                                   Protocol.DEFAULT_PORT));
+            return;
+        }
+        String url = host.contains("/") ? "//" + host
+                     : "//" + host + "/" + ChatServer.SERVER_NAME_IN_REGISTRY;
+        server = (ChatServer) Naming.lookup(url);
     }
 
     private String readNextLine() {
@@ -118,5 +276,40 @@ public class NonBlockingInterpreter implements Runnable {
         public void recvMsg(String msg) {
             outMgr.println((String) msg);
         }
+
+        @Override
+        public void recvMsgs(String[] msgs) {
+            outMgr.println(String.join(System.lineSeparator(), msgs));
+        }
+
+        @Override
+        public void recvMessages(ChatMessage[] msgs) {
+            StringBuilder lines = new StringBuilder();
+            for (ChatMessage msg : msgs) {
+                if (!isFirstDelivery(msg)) {
+                    continue;
+                }
+                if (lines.length() > 0) {
+                    lines.append(System.lineSeparator());
+                }
+                lines.append(msg);
+            }
+            if (lines.length() > 0) {
+                outMgr.println(lines.toString());
+            }
+        }
+
+        /**
+         * Records the sequence number of the specified message as received in its room. A message
+         * with a sequence number that was already received is delivered again only because the
+         * server retried a delivery.
+         */
+        private boolean isFirstDelivery(ChatMessage msg) {
+            if (msg.getSequence() == ChatMessage.NO_SEQUENCE) {
+                return true;
+            }
+            return received.computeIfAbsent(msg.getRoom(), room -> new ReceivedSequences())
+                    .add(msg.getSequence());
+        }
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.client.view;
+
+import java.util.TreeSet;
+import se.kth.id1212.rmi.common.ChatMessage;
+
+/**
+ * The sequence numbers of the messages received in one room. Messages may arrive out of order,
+ * for example when a retried delivery overtakes a later one, therefore the exact numbers are
+ * remembered, instead of only the highest. At most <code>MAX_TRACKED</code> numbers are kept, all
+ * numbers older than those count as received.
+ */
+class ReceivedSequences {
+    private static final int MAX_TRACKED = 1024;
+    private final TreeSet<Long> tracked = new TreeSet<>();
+    private long floor = ChatMessage.NO_SEQUENCE;
+
+    /**
+     * Records that the message with the specified sequence number has been received.
+     *
+     * @param sequence The sequence number of the received message.
+     * @return <code>true</code> if the message was not received before, <code>false</code> if it
+     *         is delivered again.
+     */
+    synchronized boolean add(long sequence) {
+        if (sequence <= floor || !tracked.add(sequence)) {
+            return false;
+        }
+        while (tracked.size() > MAX_TRACKED) {
+            floor = tracked.pollFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sequence number of the last message before the first gap, which is where a
+     * resumed session shall continue. Messages after the gap that are sent again are ignored by
+     * <code>add</code>.
+     *
+     * @return The last received sequence number before the first gap, or
+     *         <code>ChatMessage.NO_SEQUENCE</code> if no message has been received.
+     */
+    synchronized long lastBeforeGap() {
+        long last = floor;
+        for (long sequence : tracked) {
+            if (last != ChatMessage.NO_SEQUENCE && sequence != last + 1) {
+                break;
+            }
+            last = sequence;
+        }
+        return last;
+    }
+}
@@ -23,25 +23,114 @@
  */
 package se.kth.id1212.rmi.client.view;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * This class provides a thread safe output, all methods are synchronized. 
+ * This class provides a thread safe output, that never blocks the calling thread. Output is placed
+ * in a bounded queue, and written to <code>System.out</code> by a single writer thread. The writer
+ * takes everything that is queued, and writes it in one call, which means a burst of output is
+ * written, and flushed, once instead of line by line.
+ * <p>
+ * If the queue is full, because output is produced faster than the terminal can show it, new
+ * output is discarded, and the number of discarded lines is shown when the writer catches up.
+ * <p>
+ * Output still queued when the JVM exits is written by a shutdown hook, which waits at most
+ * <code>FLUSH_TIMEOUT_MILLIS</code> for the writer.
  */
 class ThreadSafeStdOut {
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+    private final BlockingQueue<String> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private long written;
+    private final PrintStream out = System.out;
+
+    /**
+     * Creates a new instance, and starts its writer thread.
+     */
+    ThreadSafeStdOut() {
+        Thread.ofVirtual().name("console-writer").start(this::writeOutput);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "console-flush"));
+    }
+
+    /**
+     * Prints the specified output to <code>System.out</code>. This method returns without waiting
+     * for the output to be written.
+     *
+     * @param output The output to print.
+     */
+    void print(String output) {
+        if (pending.offer(output)) {
+            queued.incrementAndGet();
+        } else {
+            skipped.incrementAndGet();
+        }
+    }
+
     /**
-     * Prints the specified output to <code>System.out</code>,
-     * 
-     * @param output The output to print. 
+     * Prints the specified output, plus a line break, to <code>System.out</code>. This method
+     * returns without waiting for the output to be written.
+     *
+     * @param output The output to print.
      */
-    synchronized void print(String output) {
-        System.out.print(output);
+    void println(String output) {
+        print(output + System.lineSeparator());
     }
 
     /**
-     * Prints the specified output, plus a line break, to <code>System.out</code>,
-     * 
-     * @param output The output to print. 
+     * Waits until all output printed before this call has been written, but at most
+     * <code>FLUSH_TIMEOUT_MILLIS</code>.
      */
-    synchronized void println(String output) {
-        System.out.println(output);
+    void flush() {
+        long target = queued.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        synchronized (this) {
+            long remaining;
+            while (written < target && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void batchWritten(int count) {
+        written += count;
+        notifyAll();
+    }
+
+    private void writeOutput() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                for (String output : batch) {
+                    text.append(output);
+                }
+                long skippedCount = skipped.getAndSet(0);
+                if (skippedCount > 0) {
+                    text.append("[").append(skippedCount).append(" lines were not shown]")
+                            .append(System.lineSeparator());
+                }
+                out.print(text);
+                out.flush();
+                batchWritten(batch.size());
+                batch.clear();
+                text.setLength(0);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
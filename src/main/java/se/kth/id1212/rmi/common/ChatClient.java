@@ -36,4 +36,33 @@ public interface ChatClient extends Remote{
      * @param msg The message that shall be received.
      */
     void recvMsg(String msg) throws RemoteException;
+
+    /**
+     * The specified messages are received by the client, in the order they appear in the array.
+     * The server uses this method to deliver many messages in one single call. Clients that do not
+     * override it receive the messages one by one, through <code>recvMsg</code>.
+     *
+     * @param msgs The messages that shall be received.
+     */
+    default void recvMsgs(String[] msgs) throws RemoteException {
+        for (String msg : msgs) {
+            recvMsg(msg);
+        }
+    }
+
+    /**
+     * The specified messages are received by the client, in the order they appear in the array.
+     * This is the method the server uses to deliver messages, since it carries the sender, room,
+     * sequence number and timestamp of each message. Clients that do not override it receive the
+     * text of each message through <code>recvMsgs</code>.
+     *
+     * @param msgs The messages that shall be received.
+     */
+    default void recvMessages(ChatMessage[] msgs) throws RemoteException {
+        String[] texts = new String[msgs.length];
+        for (int i = 0; i < msgs.length; i++) {
+            texts[i] = msgs[i].toString();
+        }
+        recvMsgs(texts);
+    }
 }
@@ -0,0 +1,263 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message delivered to a chat client. A message has a sender, a body, the room in which it was
+ * broadcasted, its sequence number in the conversation of that room and the time it was
+ * broadcasted. Notices from the server have no sender, and no sequence number. Direct messages
+ * have no sequence number, and the room <code>DIRECT_ROOM</code>, which is not the name of any
+ * real room.
+ * <p>
+ * The message is transferred in a compact binary form, which is encoded the first time the message
+ * is serialized. Since the same message instance is delivered to all members of a room, the
+ * encoding is done once for each broadcast, not once for each recipient.
+ */
+public class ChatMessage implements Externalizable {
+    /**
+     * The sequence number of a message that is not part of a conversation.
+     */
+    public static final long NO_SEQUENCE = -1;
+    /**
+     * Separates the sender from the body in the text of a message.
+     */
+    public static final String SENDER_DELIMITER = ": ";
+    /**
+     * The room of all direct messages.
+     */
+    public static final String DIRECT_ROOM = "@private";
+    private static final int NULL_LENGTH = -1;
+    private String room;
+    private long sequence;
+    private long timestamp;
+    private String sender;
+    private String body;
+    private volatile byte[] encoded;
+
+    /**
+     * Used only by serialization, do not call this constructor.
+     */
+    public ChatMessage() {
+    }
+
+    /**
+     * Creates a new message.
+     *
+     * @param room      The room in which the message was broadcasted.
+     * @param sequence  The message's index in the conversation of the room.
+     * @param timestamp The time the message was broadcasted, in milliseconds since the epoch.
+     * @param sender    The username of the sender, or <code>null</code> if the message has no
+     *                  sender.
+     * @param body      The message body.
+     */
+    public ChatMessage(String room, long sequence, long timestamp, String sender, String body) {
+        this.room = room;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.body = body;
+    }
+
+    /**
+     * Creates a notice from the server, which is not part of any conversation.
+     *
+     * @param body The text of the notice.
+     * @return The newly created notice.
+     */
+    public static ChatMessage notice(String body) {
+        return new ChatMessage(null, NO_SEQUENCE, System.currentTimeMillis(), null, body);
+    }
+
+    /**
+     * Creates a direct message, which is sent to one participant only.
+     *
+     * @param sender The username of the sender.
+     * @param body   The message body.
+     * @return The newly created direct message.
+     */
+    public static ChatMessage direct(String sender, String body) {
+        return new ChatMessage(DIRECT_ROOM, NO_SEQUENCE, System.currentTimeMillis(), sender, body);
+    }
+
+    /**
+     * @return The room in which this message was broadcasted, or <code>null</code> if this is a
+     *         notice.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * @return This message's index in the conversation of the room, or <code>NO_SEQUENCE</code>
+     *         if this is a notice.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The time this message was broadcasted, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The username of the sender, or <code>null</code> if this message has no sender.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return The message body.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return The sender and the body, as they are stored in the conversation.
+     */
+    public String getText() {
+        return sender == null ? body : sender + SENDER_DELIMITER + body;
+    }
+
+    /**
+     * @return The text of this message, prefixed with the room name unless the message was
+     *         broadcasted in the default room.
+     */
+    @Override
+    public String toString() {
+        if (room == null || room.equals(ChatServer.DEFAULT_ROOM)) {
+            return getText();
+        }
+        return "[" + room + "] " + getText();
+    }
+
+    /**
+     * Returns the encoded form of this message, which is the form used by both RMI and the socket
+     * transport. The message is encoded the first time this method is called, later calls return
+     * the same array, which must not be modified.
+     *
+     * @return The encoded message.
+     */
+    public byte[] toBytes() {
+        return encode();
+    }
+
+    /**
+     * Creates a message from its encoded form.
+     *
+     * @param bytes The encoded message, as returned by <code>toBytes</code>.
+     * @return The decoded message.
+     * @throws IOException If the specified bytes are not an encoded message.
+     */
+    public static ChatMessage fromBytes(byte[] bytes) throws IOException {
+        ChatMessage msg = new ChatMessage();
+        msg.decode(bytes);
+        return msg;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        byte[] bytes = encode();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        decode(bytes);
+    }
+
+    private void decode(byte[] bytes) throws IOException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            sequence = buf.getLong();
+            timestamp = buf.getLong();
+            room = readString(buf);
+            sender = readString(buf);
+            body = readString(buf);
+        } catch (BufferUnderflowException | IllegalArgumentException malformed) {
+            throw new IOException("Malformed chat message.", malformed);
+        }
+        encoded = bytes;
+    }
+
+    private byte[] encode() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(buf)) {
+                out.writeLong(sequence);
+                out.writeLong(timestamp);
+                writeString(out, room);
+                writeString(out, sender);
+                writeString(out, body);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            bytes = buf.toByteArray();
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String str = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return str;
+    }
+}
@@ -25,6 +25,7 @@ package se.kth.id1212.rmi.common;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Map;
 
 /**
  * The remote methods of a chat server.
@@ -34,15 +35,24 @@ public interface ChatServer extends Remote {
      * The default URI of the chat server in the RMI registry.
      */
     public static final String SERVER_NAME_IN_REGISTRY = "CHAT_SERVER";
+    /**
+     * The name of the room all participants join at login.
+     */
+    public static final String DEFAULT_ROOM = "main";
+    /**
+     * The maximum number of characters in a message body.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024;
 
     /**
-     * Makes a new participant join the conversation.
+     * Makes a new participant join the conversation. The participant joins the default room.
      *
      * @param remoteNode The remote endpoint of the joining participant. This is the remote object
      *                   that will be used to send messages to the participant.
      * @param credentials The credentials of the joining participant. 
      * @return The id of the joining participant. A participant must use this id for identification
      *         in all communication with the server.
+     * @throws MessageException If another participant has the specified username.
      */
     long login(ChatClient remoteNode, Credentials credentials) throws RemoteException;
 
@@ -51,22 +61,137 @@ public interface ChatServer extends Remote {
      *
      * @param id The id of the participant wishing to change username.
      * @param userName   The participant's new username.
+     * @throws MessageException If another participant has the new username.
      */
     void changeNickname(long id, String username) throws RemoteException;
 
     /**
-     * Broadcasts the specified message to all participants in the conversation.
+     * Broadcasts the specified message to all participants in the default room.
      *
      * @param id The id of the broadcasting participant.
      * @param msg        The message to broadcast.
+     * @throws MessageException If the message is longer than <code>MAX_MESSAGE_LENGTH</code>.
      */
     void broadcastMsg(long id, String msg) throws RemoteException;
 
     /**
-     * The specified participant is removed from the conversation, no more messages will be sent to
-     * that node.
+     * Broadcasts the specified message to all participants in the specified room.
+     *
+     * @param id   The id of the broadcasting participant.
+     * @param room The name of the room. The broadcasting participant must be a member of the room.
+     * @param msg  The message to broadcast.
+     * @throws MessageException If the message is longer than <code>MAX_MESSAGE_LENGTH</code>.
+     */
+    void broadcastMsg(long id, String room, String msg) throws RemoteException;
+
+    /**
+     * Sends the specified message to the participant with the specified username only. The
+     * message is not part of any room's conversation. The recipient must be logged in to the same
+     * server as the sender.
+     *
+     * @param id        The id of the sending participant.
+     * @param recipient The username of the recipient.
+     * @param msg       The message to send.
+     * @throws MessageException If there is no logged in participant with the specified username,
+     *                          or if the message is longer than <code>MAX_MESSAGE_LENGTH</code>.
+     */
+    void sendDirectMsg(long id, String recipient, String msg) throws RemoteException;
+
+    /**
+     * Makes the specified participant join the specified room. The room is created if it does not
+     * exist.
+     *
+     * @param id   The id of the joining participant.
+     * @param room The name of the room.
+     */
+    void joinRoom(long id, String room) throws RemoteException;
+
+    /**
+     * Makes the specified participant leave the specified room. No more messages from that room
+     * will be sent to the participant.
+     *
+     * @param id   The id of the leaving participant.
+     * @param room The name of the room.
+     */
+    void leaveRoom(long id, String room) throws RemoteException;
+
+    /**
+     * @return The names of all rooms.
+     */
+    String[] listRooms() throws RemoteException;
+
+    /**
+     * Returns entries from the conversation history of the specified room, ending immediately
+     * before the specified cursor. To page backwards through the history, first specify
+     * <code>HistoryPage.BEFORE_LOGIN_REPLAY</code>, then the cursor of the previously returned
+     * page.
+     *
+     * @param id         The id of the participant fetching history.
+     * @param room       The name of the room. The participant must be a member of the room.
+     * @param before     The returned page ends with the entry immediately before this cursor.
+     * @param maxEntries The maximum number of entries on the returned page.
+     * @return The requested page of history.
+     */
+    HistoryPage getHistory(long id, String room, long before, int maxEntries)
+            throws RemoteException;
+
+    /**
+     * Searches the conversation of the specified room for entries that contain all the specified
+     * words, regardless of case, and that were written by the specified sender. The most recent
+     * matching entries are returned first. To page backwards through the matching entries, first
+     * specify <code>HistoryPage.AFTER_NEWEST</code>, then the cursor of the previously returned
+     * page.
+     *
+     * @param id         The id of the searching participant.
+     * @param room       The name of the room. The participant must be a member of the room.
+     * @param keywords   The words to search for, separated by blanks. May be <code>null</code>
+     *                   if a sender is specified.
+     * @param sender     The username of the sender, or <code>null</code> to search entries by
+     *                   all senders.
+     * @param before     The returned page ends with the last matching entry before this cursor.
+     * @param maxEntries The maximum number of entries on the returned page.
+     * @return The requested page of matching entries, oldest entry first.
+     */
+    HistoryPage search(long id, String room, String keywords, String sender, long before,
+                       int maxEntries) throws RemoteException;
+
+    /**
+     * The specified participant is removed from the conversation and from all rooms, no more
+     * messages will be sent to that node.
      *
      * @param id The id of the leaving participant.
      */
     void leaveConversation(long id) throws RemoteException;
+
+    /**
+     * Tells the server that the specified participant is still alive. A participant that neither
+     * pings the server, broadcasts messages nor receives messages is disconnected when its lease
+     * expires, a client should therefore ping the server regularly, in order to stay logged in
+     * while the conversation is quiet.
+     *
+     * @param id The id of the pinging participant.
+     * @throws MessageException If the participant is not logged in, for example because its
+     *                          lease has already expired.
+     */
+    void ping(long id) throws RemoteException;
+
+    /**
+     * Logs in again after the connection to the server was lost. The participant joins the
+     * default room and all specified rooms, and is sent the entries of each room that it has not
+     * yet seen, instead of the most recent entries. This means a reconnecting client is sent only
+     * the entries it missed. If the participant with the specified previous id is still logged
+     * in, it is the client's lost session, and is logged out. Another participant with the
+     * client's username is never logged out.
+     *
+     * @param remoteNode  The client's remote node.
+     * @param credentials The client's credentials.
+     * @param previousId  The id of the client's lost session.
+     * @param lastSeen    Maps the name of each room the client was a member of, to the sequence
+     *                    number of the last message it received from that room.
+     * @return The new id of the participant.
+     * @throws MessageException If a participant other than the lost session has the client's
+     *                          username.
+     */
+    long resume(ChatClient remoteNode, Credentials credentials, long previousId,
+                Map<String, Long> lastSeen) throws RemoteException;
 }
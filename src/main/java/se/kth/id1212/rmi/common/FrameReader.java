@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of one frame of the socket transport protocol, see <code>Protocol</code> for
+ * the layout. Fields are read in the order they were written.
+ */
+public class FrameReader {
+    private static final int NULL_LENGTH = -1;
+    private final ByteBuffer frame;
+    private final byte type;
+    private final int requestId;
+
+    /**
+     * Starts reading the specified frame.
+     *
+     * @param frame The frame, without the leading length field.
+     * @throws IOException If the frame is too short to hold a type and a request id.
+     */
+    public FrameReader(byte[] frame) throws IOException {
+        this.frame = ByteBuffer.wrap(frame);
+        try {
+            this.type = this.frame.get();
+            this.requestId = this.frame.getInt();
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Truncated frame.", bue);
+        }
+    }
+
+    /**
+     * @return The frame type.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return The request id of the frame.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @return The next field.
+     * @throws IOException If the frame has no more fields.
+     */
+    public int getInt() throws IOException {
+        try {
+            return frame.getInt();
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Truncated frame.", bue);
+        }
+    }
+
+    /**
+     * @return The next field.
+     * @throws IOException If the frame has no more fields.
+     */
+    public long getLong() throws IOException {
+        try {
+            return frame.getLong();
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Truncated frame.", bue);
+        }
+    }
+
+    /**
+     * @return The next field.
+     * @throws IOException If the frame has no more fields.
+     */
+    public boolean getBoolean() throws IOException {
+        try {
+            return frame.get() != 0;
+        } catch (BufferUnderflowException bue) {
+            throw new IOException("Truncated frame.", bue);
+        }
+    }
+
+    /**
+     * @return The next field, which is a length-prefixed array of bytes.
+     * @throws IOException If the frame has no more fields.
+     */
+    public byte[] getBytes() throws IOException {
+        byte[] bytes = new byte[checkLength(getInt())];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The next field, which may be <code>null</code>.
+     * @throws IOException If the frame has no more fields.
+     */
+    public String getString() throws IOException {
+        int length = getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        String value = new String(frame.array(), frame.position(), checkLength(length),
+                                  StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    /**
+     * @return The next field, which is the number of strings followed by each string.
+     * @throws IOException If the frame has no more fields.
+     */
+    public String[] getStrings() throws IOException {
+        int count = getInt();
+        if (count < 0 || count > frame.remaining() / Integer.BYTES) {
+            throw new IOException("Invalid string count: " + count);
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = getString();
+        }
+        return values;
+    }
+
+    private int checkLength(int length) throws IOException {
+        if (length < 0 || length > frame.remaining()) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        return length;
+    }
+}
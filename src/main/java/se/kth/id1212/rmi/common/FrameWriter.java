@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds one frame of the socket transport protocol, see <code>Protocol</code> for the layout.
+ * Fields are appended in the order they are written.
+ */
+public class FrameWriter {
+    private static final int NULL_LENGTH = -1;
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Starts a new frame.
+     *
+     * @param type      The frame type.
+     * @param requestId The request id of the frame.
+     */
+    public FrameWriter(byte type, int requestId) {
+        try {
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeInt(requestId);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @param value The value to append.
+     * @return This writer.
+     */
+    public FrameWriter putInt(int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * @param value The value to append.
+     * @return This writer.
+     */
+    public FrameWriter putLong(long value) {
+        try {
+            out.writeLong(value);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * @param value The value to append.
+     * @return This writer.
+     */
+    public FrameWriter putBoolean(boolean value) {
+        try {
+            out.writeBoolean(value);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the specified bytes, prefixed with their length.
+     *
+     * @param bytes The bytes to append.
+     * @return This writer.
+     */
+    public FrameWriter putBytes(byte[] bytes) {
+        try {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return this;
+    }
+
+    /**
+     * @param value The string to append, may be <code>null</code>.
+     * @return This writer.
+     */
+    public FrameWriter putString(String value) {
+        if (value == null) {
+            return putInt(NULL_LENGTH);
+        }
+        return putBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the number of strings, followed by each string.
+     *
+     * @param values The strings to append.
+     * @return This writer.
+     */
+    public FrameWriter putStrings(String[] values) {
+        putInt(values.length);
+        for (String value : values) {
+            putString(value);
+        }
+        return this;
+    }
+
+    /**
+     * @return The complete frame, ready to be written to a channel.
+     * @throws IllegalStateException If the frame is longer than allowed by the protocol.
+     */
+    public ByteBuffer toBuffer() {
+        ByteBuffer frame = ByteBuffer.wrap(buf.toByteArray());
+        int length = frame.limit() - Integer.BYTES;
+        if (length > Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalStateException("Frame is too long: " + length);
+        }
+        return frame.putInt(0, length);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.common;
+
+import java.io.Serializable;
+
+/**
+ * A sequence of consecutive entries from the conversation history, and a cursor that is used to
+ * fetch the entries immediately before this page.
+ */
+public class HistoryPage implements Serializable {
+    /**
+     * A cursor specifying the entries before those that were sent to the participant at login.
+     * This is the cursor to use when fetching the first page of history.
+     */
+    public static final long BEFORE_LOGIN_REPLAY = -1;
+    /**
+     * A cursor specifying that a page ends with the newest entry. This is the cursor to use when
+     * fetching the first page of search results.
+     */
+    public static final long AFTER_NEWEST = Long.MAX_VALUE;
+    private final String[] entries;
+    private final long firstIndex;
+    private final boolean hasMore;
+
+    /**
+     * Creates a new instance with the specified entries.
+     *
+     * @param entries    The entries on this page, oldest entry first.
+     * @param firstIndex The index in the conversation of the first entry on this page.
+     * @param hasMore    <code>true</code> if the server holds entries before those on this page.
+     */
+    public HistoryPage(String[] entries, long firstIndex, boolean hasMore) {
+        this.entries = entries;
+        this.firstIndex = firstIndex;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * @return The entries on this page, oldest entry first.
+     */
+    public String[] getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The cursor that shall be specified to fetch the entries immediately before the
+     *         entries on this page.
+     */
+    public long getCursor() {
+        return firstIndex;
+    }
+
+    /**
+     * @return <code>true</code> if there are entries before the entries on this page,
+     *         <code>false</code> if this page starts with the oldest entry retained by the server.
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
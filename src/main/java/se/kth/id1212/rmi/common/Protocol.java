@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.common;
+
+/**
+ * The framed binary protocol spoken by the socket transport, which is an alternative to RMI. The
+ * protocol carries the same operations as <code>ChatServer</code> and <code>ChatClient</code>.
+ * <p>
+ * Each frame has the following layout, all integers are big endian.
+ * <pre>
+ * int  length    Number of bytes following this field.
+ * byte type      One of the frame types defined in this class.
+ * int  requestId Chosen by the client, and copied to the response. Zero in MESSAGES frames.
+ * ...  payload   Depends on the frame type.
+ * </pre>
+ * A client sends request frames, the server answers each request with either a RESULT frame or an
+ * ERROR frame holding the exception message. Responses are sent in the same order as requests.
+ * Chat messages are pushed from server to client in MESSAGES frames, which may arrive at any time.
+ * Strings are written as an <code>int</code> length followed by that many UTF-8 bytes, a
+ * <code>null</code> string has the length -1.
+ */
+public final class Protocol {
+    /**
+     * The default port of the socket transport.
+     */
+    public static final int DEFAULT_PORT = 4712;
+    /**
+     * The maximum value of the length field of a frame.
+     */
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    /**
+     * Request payload: username, password. Result payload: participant id.
+     */
+    public static final byte LOGIN = 1;
+    /**
+     * Request payload: participant id, username. Result payload: empty.
+     */
+    public static final byte CHANGE_NICKNAME = 2;
+    /**
+     * Request payload: participant id, room, message. Result payload: empty.
+     */
+    public static final byte BROADCAST = 3;
+    /**
+     * Request payload: participant id, room. Result payload: empty.
+     */
+    public static final byte JOIN_ROOM = 4;
+    /**
+     * Request payload: participant id, room. Result payload: empty.
+     */
+    public static final byte LEAVE_ROOM = 5;
+    /**
+     * Request payload: empty. Result payload: array of room names.
+     */
+    public static final byte LIST_ROOMS = 6;
+    /**
+     * Request payload: participant id, room, cursor, maximum number of entries. Result payload:
+     * array of entries, cursor, a byte that is 1 if there are more entries.
+     */
+    public static final byte GET_HISTORY = 7;
+    /**
+     * Request payload: participant id. Result payload: empty.
+     */
+    public static final byte LEAVE_CONVERSATION = 8;
+    /**
+     * Request payload: username, password, previous participant id, the number of rooms, followed
+     * by the name and the last seen sequence number of each room. Result payload: participant id.
+     */
+    public static final byte RESUME = 9;
+    /**
+     * Request payload: participant id. Result payload: empty.
+     */
+    public static final byte PING = 10;
+    /**
+     * Request payload: participant id, room, keywords, sender, cursor, maximum number of entries.
+     * Keywords and sender may be null. Result payload: as for <code>GET_HISTORY</code>.
+     */
+    public static final byte SEARCH = 11;
+    /**
+     * Request payload: participant id, recipient's username, message. Result payload: empty.
+     */
+    public static final byte DIRECT_MESSAGE = 12;
+    /**
+     * The successful response to a request.
+     */
+    public static final byte RESULT = 64;
+    /**
+     * The response to a request that failed. Payload: the exception message.
+     */
+    public static final byte ERROR = 65;
+    /**
+     * Chat messages pushed to the client. Payload: the number of messages, followed by each
+     * message, encoded with <code>ChatMessage.toBytes</code> and prefixed with its length.
+     */
+    public static final byte MESSAGES = 66;
+
+    private Protocol() {
+    }
+}
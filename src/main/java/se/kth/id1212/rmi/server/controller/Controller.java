@@ -23,44 +23,207 @@
  */
 package se.kth.id1212.rmi.server.controller;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
 import se.kth.id1212.rmi.common.ChatServer;
 import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.HistoryPage;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.server.federation.Federation;
+import se.kth.id1212.rmi.server.metrics.ServerMetrics;
+import se.kth.id1212.rmi.server.model.Conversation;
+import se.kth.id1212.rmi.server.model.ConversationFactory;
+import se.kth.id1212.rmi.server.model.DeliveryPolicy;
+import se.kth.id1212.rmi.server.model.FloodControl;
+import se.kth.id1212.rmi.server.model.Participant;
 import se.kth.id1212.rmi.server.model.ParticipantManager;
+import se.kth.id1212.rmi.server.model.Room;
 
 /**
  * The chat server controller, which is also the remote object called by participants on remote
- * nodes. Note that there can only be one chat conversation at a time. All participants participate
- * in that same conversation.
+ * nodes. The conversation is divided into rooms, each participant joins the default room at login
+ * and may then join and leave other rooms.
  */
 public class Controller extends UnicastRemoteObject implements ChatServer {
-    private final ParticipantManager participantManager = new ParticipantManager();
+    private final ParticipantManager participantManager;
 
-    public Controller() throws RemoteException {
+    /**
+     * Creates a new instance, where each room holds an empty conversation with the default
+     * retention limits, and messages are delivered according to the default delivery policy. Each
+     * call to a participant's remote node is executed in its own virtual thread.
+     */
+    public Controller() throws IOException {
+        this(roomName -> new Conversation(), DeliveryPolicy.DEFAULT, FloodControl.DEFAULT,
+             Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Creates a new instance, where the conversation of each room is created by the specified
+     * factory.
+     *
+     * @param conversationFactory Creates the conversation of each room.
+     * @param deliveryPolicy      Decides how to handle participants that can not keep up.
+     * @param floodControl        Limits how many messages participants may broadcast.
+     * @param deliveryExecutor    Executes all calls to the remote nodes of participants.
+     * @throws IOException If a stored conversation could not be restored.
+     */
+    public Controller(ConversationFactory conversationFactory, DeliveryPolicy deliveryPolicy,
+                      FloodControl floodControl, Executor deliveryExecutor) throws IOException {
+        participantManager = new ParticipantManager(conversationFactory, deliveryPolicy,
+                                                    floodControl, deliveryExecutor);
+    }
+
+    /**
+     * @return The metrics describing this server.
+     */
+    public ServerMetrics getMetrics() {
+        return participantManager.getMetrics();
+    }
+
+    /**
+     * Makes this server a member of the specified federation. Messages broadcasted at this server
+     * are relayed to the other servers in the federation, and messages relayed from those servers
+     * are broadcasted here.
+     *
+     * @param federation The federation to join.
+     */
+    public void joinFederation(Federation federation) {
+        participantManager.setRelay(federation::publish);
+        participantManager.getMetrics().setRelayDropGauge(federation::getDroppedCount);
+        federation.start(participantManager::broadcastRelayed);
     }
 
     @Override
     public long login(ChatClient remoteNode, Credentials credentials) {
+        long startTime = System.nanoTime();
         long participantId = participantManager.createParticipant(remoteNode, credentials);
-        participantManager.sendConvToParticipant(participantId);
+        participantManager.findParticipant(participantId)
+                .joinRoom(participantManager.findOrCreateRoom(DEFAULT_ROOM));
+        participantManager.getMetrics().loginCompleted(System.nanoTime() - startTime);
+        return participantId;
+    }
+
+    @Override
+    public long resume(ChatClient remoteNode, Credentials credentials, long previousId,
+                       Map<String, Long> lastSeen) {
+        long startTime = System.nanoTime();
+        Map<Room, Long> roomsToJoin = new LinkedHashMap<>();
+        roomsToJoin.put(participantManager.findOrCreateRoom(DEFAULT_ROOM),
+                        ChatMessage.NO_SEQUENCE);
+        for (Map.Entry<String, Long> room : lastSeen.entrySet()) {
+            roomsToJoin.put(participantManager.findOrCreateRoom(room.getKey()),
+                            room.getValue() == null ? ChatMessage.NO_SEQUENCE : room.getValue());
+        }
+        long participantId = participantManager.resumeParticipant(remoteNode, credentials,
+                                                                  previousId);
+        Participant participant = participantManager.findParticipant(participantId);
+        for (Map.Entry<Room, Long> room : roomsToJoin.entrySet()) {
+            participant.joinRoom(room.getKey(), room.getValue());
+        }
+        participantManager.getMetrics().loginCompleted(System.nanoTime() - startTime);
         return participantId;
     }
 
     @Override
     public void broadcastMsg(long id, String msg) {
-        participantManager.findParticipant(id).broadcast(msg);
+        broadcastMsg(id, DEFAULT_ROOM, msg);
+    }
+
+    @Override
+    public void broadcastMsg(long id, String room, String msg) {
+        checkLength(msg);
+        Participant participant = findLoggedIn(id);
+        participant.renewLease();
+        participantManager.admitBroadcast(participant);
+        participant.broadcast(room, msg);
+    }
+
+    @Override
+    public void sendDirectMsg(long id, String recipient, String msg) {
+        checkLength(msg);
+        Participant sender = findLoggedIn(id);
+        sender.renewLease();
+        participantManager.admitBroadcast(sender);
+        participantManager.sendDirect(sender, recipient, msg);
+    }
+
+    @Override
+    public void joinRoom(long id, String room) {
+        findLoggedIn(id).joinRoom(participantManager.findOrCreateRoom(room));
+    }
+
+    @Override
+    public void leaveRoom(long id, String room) {
+        findLoggedIn(id).leaveRoom(room);
+    }
+
+    @Override
+    public String[] listRooms() {
+        return participantManager.listRooms();
+    }
+
+    @Override
+    public HistoryPage getHistory(long id, String room, long before, int maxEntries) {
+        return findLoggedIn(id).getHistory(room, before, maxEntries);
+    }
+
+    @Override
+    public HistoryPage search(long id, String room, String keywords, String sender, long before,
+                              int maxEntries) {
+        return findLoggedIn(id).search(room, keywords, sender, before, maxEntries);
     }
 
     @Override
     public void leaveConversation(long id) {
-        participantManager.findParticipant(id).leaveConversation();
+        Participant participant = findLoggedIn(id);
+        participant.leaveConversation();
         participantManager.removeParticipant(id);
     }
 
+    @Override
+    public void ping(long id) {
+        findLoggedIn(id).renewLease();
+    }
+
     @Override
     public void changeNickname(long id, String username) throws RemoteException {
-        participantManager.findParticipant(id).changeUsername(username);
+        participantManager.changeUsername(findLoggedIn(id), username);
+    }
+
+    /**
+     * Rejects a message that is so long that it could not be delivered in one frame of the socket
+     * transport.
+     *
+     * @param msg The message body.
+     * @throws MessageException If the message is longer than <code>MAX_MESSAGE_LENGTH</code>.
+     */
+    private static void checkLength(String msg) {
+        if (msg != null && msg.length() > MAX_MESSAGE_LENGTH) {
+            throw new MessageException("Messages may be at most " + MAX_MESSAGE_LENGTH
+                                       + " characters long.");
+        }
+    }
+
+    /**
+     * Returns the specified participant, which may have been removed since it last called this
+     * server, because its lease expired.
+     *
+     * @param id The id of the participant.
+     * @return The participant with the specified id.
+     * @throws MessageException If there is no participant with the specified id.
+     */
+    private Participant findLoggedIn(long id) {
+        Participant participant = participantManager.findParticipant(id);
+        if (participant == null) {
+            throw new MessageException("Not logged in, the session may have expired.");
+        }
+        return participant;
     }
 }
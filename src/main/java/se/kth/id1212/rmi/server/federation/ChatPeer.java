@@ -0,0 +1,46 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.federation;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import se.kth.id1212.rmi.common.ChatMessage;
+
+/**
+ * The link between federated chat servers. Each server relays messages broadcasted by its own
+ * participants to all other servers in the federation, by calling this interface.
+ */
+public interface ChatPeer extends Remote {
+    /**
+     * The specified messages, broadcasted at another server, are broadcasted to the participants
+     * at this server. Messages already received from the same origin are ignored, which means a
+     * batch may safely be relayed again if the previous attempt failed.
+     *
+     * @param originId Identifies the server where the messages were broadcasted, and also the time
+     *                 that server was started.
+     * @param msgs     The messages, in the order they were broadcasted. The sequence number of a
+     *                 message is its index in the conversation at the origin.
+     */
+    void relay(String originId, ChatMessage[] msgs) throws RemoteException;
+}
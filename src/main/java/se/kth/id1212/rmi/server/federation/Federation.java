@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.federation;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.MessageException;
+
+/**
+ * Connects this chat server to the other servers in a federation, so that participants at
+ * different servers share the same rooms. Every server is linked to every other server, and relays
+ * only messages broadcasted by its own participants, which means a message is never relayed more
+ * than once.
+ * <p>
+ * Messages from one origin are relayed over one link, in the order they were broadcasted, and are
+ * broadcasted by the receiving server in that same order. Messages from different origins may be
+ * interleaved differently at different servers. Each server remembers, for each origin and room,
+ * the sequence number of the last relayed message, and ignores messages it has already received.
+ * The origin id includes a random part that is chosen when the server is started, so that a
+ * restarted origin, whose sequence numbers may start over, is not mistaken for the old one. Since
+ * every restart creates a new origin, an origin and room that has not relayed anything for
+ * <code>RELAY_MEMORY_MILLIS</code> is forgotten.
+ */
+public class Federation extends UnicastRemoteObject implements ChatPeer {
+    /**
+     * Appended to the name of a server in the RMI registry, to form the name of its peer link.
+     */
+    public static final String PEER_NAME_SUFFIX = ".peer";
+    private static final long RELAY_MEMORY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int RELAYS_PER_SWEEP = 1024;
+    private final String originId;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Map<String, LastRelayed> lastRelayed = new ConcurrentHashMap<>();
+    private final AtomicInteger relaysUntilSweep = new AtomicInteger(RELAYS_PER_SWEEP);
+    private volatile Consumer<ChatMessage> localDelivery = msg -> {
+    };
+
+    /**
+     * Creates a new instance, which does not relay anything until it is started.
+     *
+     * @param nodeName The name of this server in the RMI registry.
+     * @param peerUrls The URLs of all other servers in the RMI registry, for example
+     *                 <code>//localhost/node2</code>.
+     */
+    public Federation(String nodeName, List<String> peerUrls) throws RemoteException {
+        this.originId = nodeName + "/" + UUID.randomUUID();
+        for (String peerUrl : peerUrls) {
+            links.add(new PeerLink(peerUrl + PEER_NAME_SUFFIX, originId));
+        }
+    }
+
+    /**
+     * Starts relaying messages to the other servers.
+     *
+     * @param localDelivery Broadcasts a relayed message to the participants at this server.
+     */
+    public void start(Consumer<ChatMessage> localDelivery) {
+        this.localDelivery = localDelivery;
+        for (PeerLink link : links) {
+            link.start();
+        }
+    }
+
+    /**
+     * Relays the specified message, which was broadcasted at this server, to all other servers.
+     * This method does not wait for the message to be relayed.
+     *
+     * @param msg The message to relay.
+     */
+    public void publish(ChatMessage msg) {
+        for (PeerLink link : links) {
+            link.offer(msg);
+        }
+    }
+
+    /**
+     * @return The number of messages that could not be relayed because a peer was unreachable for
+     *         so long that its link became full.
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (PeerLink link : links) {
+            count += link.getDroppedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void relay(String originId, ChatMessage[] msgs) {
+        if (relaysUntilSweep.decrementAndGet() <= 0) {
+            relaysUntilSweep.set(RELAYS_PER_SWEEP);
+            forgetIdleOrigins();
+        }
+        for (ChatMessage msg : msgs) {
+            if (!isFirstRelay(originId, msg)) {
+                continue;
+            }
+            try {
+                localDelivery.accept(msg);
+            } catch (MessageException invalidRoom) {
+                System.err.println("Ignored relayed message: " + invalidRoom.getMessage());
+            }
+        }
+    }
+
+    private boolean isFirstRelay(String originId, ChatMessage msg) {
+        boolean[] first = new boolean[1];
+        lastRelayed.compute(originId + "#" + msg.getRoom(), (key, last) -> {
+            if (last != null && last.sequence >= msg.getSequence()) {
+                return last;
+            }
+            first[0] = true;
+            return new LastRelayed(msg.getSequence());
+        });
+        return first[0];
+    }
+
+    private void forgetIdleOrigins() {
+        long oldestKept = System.currentTimeMillis() - RELAY_MEMORY_MILLIS;
+        lastRelayed.values().removeIf(last -> last.relayedAt < oldestKept);
+    }
+
+    private static class LastRelayed {
+        private final long sequence;
+        private final long relayedAt = System.currentTimeMillis();
+
+        LastRelayed(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.federation;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import se.kth.id1212.rmi.common.ChatMessage;
+
+/**
+ * The outbound link to one peer server. Messages are relayed in batches, by a virtual thread owned
+ * by the link, in the order they were broadcasted. A batch that can not be relayed is retried
+ * until it succeeds, the peer is looked up again before each retry, since it may have been
+ * restarted. Messages broadcasted while the peer is unreachable are queued, up to the capacity of
+ * the link.
+ */
+class PeerLink {
+    private static final int CAPACITY = 10_000;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private final String peerUrl;
+    private final String originId;
+    private final BlockingQueue<ChatMessage> pending = new ArrayBlockingQueue<>(CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private ChatPeer peer;
+
+    /**
+     * Creates a new link, which does not relay anything until it is started.
+     *
+     * @param peerUrl  The URL of the peer in the RMI registry.
+     * @param originId Identifies this server to the peer.
+     */
+    PeerLink(String peerUrl, String originId) {
+        this.peerUrl = peerUrl;
+        this.originId = originId;
+    }
+
+    /**
+     * Starts relaying messages.
+     */
+    void start() {
+        Thread.ofVirtual().name("peer-link " + peerUrl).start(this::forward);
+    }
+
+    /**
+     * Queues the specified message for relaying. If the link is full, the message is dropped.
+     *
+     * @param msg The message to relay.
+     */
+    void offer(ChatMessage msg) {
+        if (!pending.offer(msg)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of messages that were dropped because the link was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void forward() {
+        List<ChatMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+                ChatMessage[] msgs = batch.toArray(new ChatMessage[0]);
+                while (!send(msgs)) {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean send(ChatMessage[] msgs) {
+        try {
+            if (peer == null) {
+                peer = (ChatPeer) Naming.lookup(peerUrl);
+            }
+            peer.relay(originId, msgs);
+            return true;
+        } catch (NotBoundException | MalformedURLException | RemoteException peerUnreachable) {
+            peer = null;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.integration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only file holding conversation entries. Each entry is stored as one length-prefixed
+ * record, with the following layout.
+ * <pre>
+ * int  length    Number of bytes in the entry.
+ * long index     The entry's index in the conversation.
+ * long timestamp The time the entry was appended, in milliseconds since the epoch.
+ * byte[length]   The entry, UTF-8 encoded.
+ * int  length    The same value as the first field.
+ * </pre>
+ * The trailing length makes it possible to walk the journal backwards from its end, which means
+ * the most recent entries can be read without reading the entire file.
+ * <p>
+ * Writing a record and making it durable are two separate steps. Records are written with
+ * <code>write</code>, which is fast, and made durable with <code>sync</code>, which forces the file
+ * to disk. All threads waiting in <code>sync</code> at the same time share one single force (group
+ * commit), one of them performs it on behalf of all.
+ */
+public class ConversationJournal implements Closeable {
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int TRAILER_SIZE = Integer.BYTES;
+    private static final int TIMESTAMP_OFFSET = Integer.BYTES + Long.BYTES;
+    private final FileChannel channel;
+    private final Object writeLock = new Object();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncCompleted = syncLock.newCondition();
+    private volatile long writtenPosition;
+    private long durablePosition;
+    private boolean syncInProgress;
+
+    /**
+     * Handles records read from the journal.
+     */
+    public interface RecordHandler {
+        /**
+         * Called once for each record that is read.
+         *
+         * @param index     The entry's index in the conversation.
+         * @param timestamp The time the entry was appended.
+         * @param entry     The entry.
+         */
+        void handle(long index, long timestamp, String entry);
+    }
+
+    /**
+     * Opens the specified journal file, creating it if it does not exist. If the last record in
+     * the file is incomplete, which happens if the server crashed while writing it, that record is
+     * removed.
+     *
+     * @param file The journal file.
+     * @throws IOException If the file could not be opened.
+     */
+    public ConversationJournal(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        long end = findEndOfLastCompleteRecord();
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        writtenPosition = end;
+        durablePosition = end;
+    }
+
+    /**
+     * Writes a record with the specified entry to the end of the journal. The record is not
+     * durable until <code>sync</code> has been called with the returned position.
+     *
+     * @param index     The entry's index in the conversation.
+     * @param timestamp The time the entry was appended.
+     * @param entry     The entry.
+     * @return The position immediately after the written record.
+     * @throws IOException If the record could not be written.
+     */
+    public long write(long index, long timestamp, String entry) throws IOException {
+        byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length + TRAILER_SIZE);
+        record.putInt(bytes.length).putLong(index).putLong(timestamp).put(bytes)
+                .putInt(bytes.length).flip();
+        synchronized (writeLock) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            writtenPosition = channel.position();
+            return writtenPosition;
+        }
+    }
+
+    /**
+     * Waits until all records up to the specified position are durable. If no other thread is
+     * currently forcing the journal to disk, the calling thread does so, on behalf of all records
+     * written so far.
+     *
+     * @param position The position returned by <code>write</code>.
+     * @throws IOException If the journal could not be forced to disk.
+     */
+    public void sync(long position) throws IOException {
+        syncLock.lock();
+        try {
+            while (durablePosition < position) {
+                if (syncInProgress) {
+                    syncCompleted.awaitUninterruptibly();
+                    continue;
+                }
+                syncInProgress = true;
+                long target = writtenPosition;
+                boolean forced = false;
+                syncLock.unlock();
+                try {
+                    channel.force(false);
+                    forced = true;
+                } finally {
+                    syncLock.lock();
+                    syncInProgress = false;
+                    if (forced) {
+                        durablePosition = Math.max(durablePosition, target);
+                    }
+                    syncCompleted.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the most recent records, oldest first. The journal is walked backwards from its end
+     * until one of the limits is reached, the records found are then read through a memory
+     * mapping of the file. This means reading time depends on the number of returned records, not
+     * on the size of the journal.
+     *
+     * @param maxRecords      The maximum number of records to read.
+     * @param maxBytes        Reading stops when the entries read so far hold at least this many
+     *                        bytes.
+     * @param oldestTimestamp Records appended before this time are not read.
+     * @param handler         Called once for each record that is read.
+     * @throws IOException If the journal could not be read.
+     */
+    public void readTail(long maxRecords, long maxBytes, long oldestTimestamp,
+                         RecordHandler handler) throws IOException {
+        long end = writtenPosition;
+        long start = end;
+        long records = 0;
+        long bytes = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (start > 0 && records < maxRecords && bytes < maxBytes) {
+            int length = readInt(start - TRAILER_SIZE);
+            long recordStart = start - TRAILER_SIZE - length - HEADER_SIZE;
+            readFully(header, recordStart);
+            if (header.getLong(TIMESTAMP_OFFSET) < oldestTimestamp) {
+                break;
+            }
+            start = recordStart;
+            records++;
+            bytes += length;
+        }
+        readForward(start, end, handler);
+    }
+
+    /**
+     * Closes the journal file.
+     *
+     * @throws IOException If the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readForward(long start, long end, RecordHandler handler) throws IOException {
+        long position = start;
+        while (position < end) {
+            long windowSize = Math.min(end - position, Integer.MAX_VALUE);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                                  windowSize);
+            while (window.remaining() >= HEADER_SIZE) {
+                int length = window.getInt(window.position());
+                if (window.remaining() < HEADER_SIZE + length + TRAILER_SIZE) {
+                    break;
+                }
+                window.getInt();
+                long index = window.getLong();
+                long timestamp = window.getLong();
+                byte[] bytes = new byte[length];
+                window.get(bytes);
+                window.getInt();
+                handler.handle(index, timestamp, new String(bytes, StandardCharsets.UTF_8));
+            }
+            if (window.position() == 0) {
+                throw new IOException("Journal record does not fit in a memory mapping.");
+            }
+            position += window.position();
+        }
+    }
+
+    private long findEndOfLastCompleteRecord() throws IOException {
+        long size = channel.size();
+        if (size == 0 || isCompleteRecordEndingAt(size)) {
+            return size;
+        }
+        long position = 0;
+        while (position + HEADER_SIZE + TRAILER_SIZE <= size) {
+            int length = readInt(position);
+            long next = position + HEADER_SIZE + length + TRAILER_SIZE;
+            if (length < 0 || next > size || !isCompleteRecordEndingAt(next)) {
+                break;
+            }
+            position = next;
+        }
+        return position;
+    }
+
+    private boolean isCompleteRecordEndingAt(long end) throws IOException {
+        if (end < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        int length = readInt(end - TRAILER_SIZE);
+        long start = end - TRAILER_SIZE - length - HEADER_SIZE;
+        return length >= 0 && start >= 0 && readInt(start) == length;
+    }
+
+    private int readInt(long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
+        readFully(buf, position);
+        return buf.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of journal.");
+            }
+        }
+    }
+}
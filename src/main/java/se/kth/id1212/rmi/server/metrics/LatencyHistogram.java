@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded durations in buckets, where each bucket covers a power of two nanoseconds.
+ * Recording is lock free, and costs two or three uncontended atomic updates. Percentiles are
+ * approximate, a reported percentile is the upper bound of the bucket holding it, which is at
+ * most twice the exact value, and never more than the maximum.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = Long.SIZE;
+    private static final double NANOS_PER_MICRO = 1000.0;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Creates a new, empty, histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The recorded duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long positive = Math.max(nanos, 0);
+        buckets[Math.max(BUCKET_COUNT - 1 - Long.numberOfLeadingZeros(positive), 0)].increment();
+        totalNanos.add(positive);
+        if (positive > maxNanos.get()) {
+            maxNanos.accumulate(positive);
+        }
+    }
+
+    /**
+     * @return The current state of this histogram.
+     */
+    public LatencySnapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        double mean = count == 0 ? 0 : totalNanos.sum() / (double) count / NANOS_PER_MICRO;
+        double max = maxNanos.get() / NANOS_PER_MICRO;
+        return new LatencySnapshot(count, mean, Math.min(percentile(counts, count, 0.5), max),
+                                   Math.min(percentile(counts, count, 0.99), max), max);
+    }
+
+    private static double percentile(long[] counts, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.scalb(1.0, i + 1) / NANOS_PER_MICRO;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms describing the chat server. Counters and histograms are
+ * updated by the instrumented code, gauges are computed when they are read. Updates are lock free,
+ * which means the metrics can stay enabled under load.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /**
+     * The name under which the metrics are published in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "se.kth.id1212.rmi:type=ServerMetrics";
+    private static final double NANOS_PER_MICRO = 1000.0;
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder directMessages = new LongAdder();
+    private final LongAdder messagesDelivered = new LongAdder();
+    private final LongAdder deliveryFailures = new LongAdder();
+    private final LongAdder messagesSkipped = new LongAdder();
+    private final LongAdder participantsEvicted = new LongAdder();
+    private final LongAdder participantsExpired = new LongAdder();
+    private final LongAdder broadcastsRejected = new LongAdder();
+    private final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    private final LatencyHistogram remoteCallLatency = new LatencyHistogram();
+    private final LatencyHistogram loginReplay = new LatencyHistogram();
+    private volatile IntSupplier activeParticipants = () -> 0;
+    private volatile IntSupplier roomCount = () -> 0;
+    private volatile LongSupplier conversationEntries = () -> 0;
+    private volatile LongSupplier pendingDeliveries = () -> 0;
+    private volatile LongSupplier slowestDeliveryLatency = () -> 0;
+    private volatile LongSupplier mostMessagesSkipped = () -> 0;
+    private volatile LongSupplier relayedMessagesDropped = () -> 0;
+
+    /**
+     * Specifies how the gauges are computed.
+     *
+     * @param activeParticipants  Returns the number of logged in participants.
+     * @param roomCount           Returns the number of rooms.
+     * @param conversationEntries Returns the number of retained entries in all rooms.
+     * @param pendingDeliveries   Returns the number of undelivered messages to all participants.
+     * @param slowestDelivery     Returns the highest smoothed average duration, in nanoseconds,
+     *                            of calls to a participant's remote node.
+     * @param mostSkipped         Returns the highest number of messages skipped for one
+     *                            participant.
+     */
+    public void setGauges(IntSupplier activeParticipants, IntSupplier roomCount,
+                          LongSupplier conversationEntries, LongSupplier pendingDeliveries,
+                          LongSupplier slowestDelivery, LongSupplier mostSkipped) {
+        this.activeParticipants = activeParticipants;
+        this.roomCount = roomCount;
+        this.conversationEntries = conversationEntries;
+        this.pendingDeliveries = pendingDeliveries;
+        this.slowestDeliveryLatency = slowestDelivery;
+        this.mostMessagesSkipped = mostSkipped;
+    }
+
+    /**
+     * Specifies how the number of messages that could not be relayed to other servers is computed.
+     *
+     * @param relayedMessagesDropped Returns the number of messages dropped because a link to
+     *                               another server was full.
+     */
+    public void setRelayDropGauge(LongSupplier relayedMessagesDropped) {
+        this.relayedMessagesDropped = relayedMessagesDropped;
+    }
+
+    /**
+     * Records a login.
+     *
+     * @param nanos The duration of the login, including the replay of recent history.
+     */
+    public void loginCompleted(long nanos) {
+        logins.increment();
+        loginReplay.record(nanos);
+    }
+
+    /**
+     * Records a broadcast.
+     *
+     * @param nanos The time it took to place the message in the outbound queues of all members.
+     */
+    public void broadcastCompleted(long nanos) {
+        broadcasts.increment();
+        broadcastFanOut.record(nanos);
+    }
+
+    /**
+     * Records a direct message.
+     */
+    public void directMessageSent() {
+        directMessages.increment();
+    }
+
+    /**
+     * Records a successful call to a participant's remote node.
+     *
+     * @param nanos        The duration of the call.
+     * @param messageCount The number of messages delivered in the call.
+     */
+    public void remoteCallSucceeded(long nanos, int messageCount) {
+        messagesDelivered.add(messageCount);
+        remoteCallLatency.record(nanos);
+    }
+
+    /**
+     * Records a failed call to a participant's remote node.
+     */
+    public void remoteCallFailed() {
+        deliveryFailures.increment();
+    }
+
+    /**
+     * Records a message discarded because an outbound queue was full.
+     */
+    public void messageSkipped() {
+        messagesSkipped.increment();
+    }
+
+    /**
+     * Records a participant evicted because it could not keep up.
+     */
+    public void participantEvicted() {
+        participantsEvicted.increment();
+    }
+
+    /**
+     * Records a participant disconnected because its lease expired.
+     */
+    public void participantExpired() {
+        participantsExpired.increment();
+    }
+
+    /**
+     * Records a broadcast rejected by flood control.
+     */
+    public void broadcastRejected() {
+        broadcastsRejected.increment();
+    }
+
+    @Override
+    public int getActiveParticipants() {
+        return activeParticipants.getAsInt();
+    }
+
+    @Override
+    public int getRoomCount() {
+        return roomCount.getAsInt();
+    }
+
+    @Override
+    public long getConversationEntries() {
+        return conversationEntries.getAsLong();
+    }
+
+    @Override
+    public long getPendingDeliveries() {
+        return pendingDeliveries.getAsLong();
+    }
+
+    @Override
+    public double getSlowestDeliveryLatency() {
+        return slowestDeliveryLatency.getAsLong() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getMostMessagesSkipped() {
+        return mostMessagesSkipped.getAsLong();
+    }
+
+    @Override
+    public long getLogins() {
+        return logins.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getMessagesDelivered() {
+        return messagesDelivered.sum();
+    }
+
+    @Override
+    public long getDeliveryFailures() {
+        return deliveryFailures.sum();
+    }
+
+    @Override
+    public long getMessagesSkipped() {
+        return messagesSkipped.sum();
+    }
+
+    @Override
+    public long getParticipantsEvicted() {
+        return participantsEvicted.sum();
+    }
+
+    @Override
+    public long getParticipantsExpired() {
+        return participantsExpired.sum();
+    }
+
+    @Override
+    public long getBroadcastsRejected() {
+        return broadcastsRejected.sum();
+    }
+
+    @Override
+    public long getRelayedMessagesDropped() {
+        return relayedMessagesDropped.getAsLong();
+    }
+
+    @Override
+    public LatencySnapshot getBroadcastFanOut() {
+        return broadcastFanOut.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRemoteCallLatency() {
+        return remoteCallLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getLoginReplay() {
+        return loginReplay.snapshot();
+    }
+
+    /**
+     * Writes all metrics to the specified file. The metrics are first written to a temporary file,
+     * which then replaces the specified file. This means a reader never sees a partially written
+     * file. This method is not part of the management interface, since it would let any JMX client
+     * write files with the server's permissions.
+     *
+     * @param path The path of the file.
+     * @throws UncheckedIOException If the file could not be written.
+     */
+    public void dumpToFile(String path) {
+        Path target = Paths.get(path).toAbsolutePath();
+        try {
+            Path tmp = Files.createTempFile(target.getParent(), "metrics", ".tmp");
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writeTo(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Writes all metrics, one per line, as <code>name=value</code>.
+     *
+     * @param out The destination of the metrics.
+     */
+    public void writeTo(Writer out) {
+        PrintWriter printer = new PrintWriter(out);
+        printer.println("timestamp=" + System.currentTimeMillis());
+        printer.println("activeParticipants=" + getActiveParticipants());
+        printer.println("roomCount=" + getRoomCount());
+        printer.println("conversationEntries=" + getConversationEntries());
+        printer.println("pendingDeliveries=" + getPendingDeliveries());
+        printer.println("slowestDeliveryLatency=" + getSlowestDeliveryLatency());
+        printer.println("mostMessagesSkipped=" + getMostMessagesSkipped());
+        printer.println("logins=" + getLogins());
+        printer.println("broadcasts=" + getBroadcasts());
+        printer.println("directMessages=" + getDirectMessages());
+        printer.println("messagesDelivered=" + getMessagesDelivered());
+        printer.println("deliveryFailures=" + getDeliveryFailures());
+        printer.println("messagesSkipped=" + getMessagesSkipped());
+        printer.println("participantsEvicted=" + getParticipantsEvicted());
+        printer.println("participantsExpired=" + getParticipantsExpired());
+        printer.println("broadcastsRejected=" + getBroadcastsRejected());
+        printer.println("relayedMessagesDropped=" + getRelayedMessagesDropped());
+        printer.println("broadcastFanOut=" + getBroadcastFanOut());
+        printer.println("remoteCallLatency=" + getRemoteCallLatency());
+        printer.println("loginReplay=" + getLoginReplay());
+        printer.flush();
+    }
+}
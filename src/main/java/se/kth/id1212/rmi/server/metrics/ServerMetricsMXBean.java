@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.metrics;
+
+/**
+ * The management interface of the chat server's metrics, published in the platform MBean server.
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return The number of logged in participants.
+     */
+    int getActiveParticipants();
+
+    /**
+     * @return The number of rooms.
+     */
+    int getRoomCount();
+
+    /**
+     * @return The number of retained entries, in the conversations of all rooms.
+     */
+    long getConversationEntries();
+
+    /**
+     * @return The number of undelivered messages, in the outbound queues of all participants.
+     */
+    long getPendingDeliveries();
+
+    /**
+     * @return The highest smoothed average duration, in microseconds, of calls to one
+     *         participant's remote node.
+     */
+    double getSlowestDeliveryLatency();
+
+    /**
+     * @return The highest number of messages discarded because one participant's outbound queue
+     *         was full.
+     */
+    long getMostMessagesSkipped();
+
+    /**
+     * @return The number of logins since the server was started.
+     */
+    long getLogins();
+
+    /**
+     * @return The number of broadcasts since the server was started.
+     */
+    long getBroadcasts();
+
+    /**
+     * @return The number of direct messages sent.
+     */
+    long getDirectMessages();
+
+    /**
+     * @return The number of messages delivered to participants since the server was started.
+     */
+    long getMessagesDelivered();
+
+    /**
+     * @return The number of failed calls to participants' remote nodes since the server was
+     *         started.
+     */
+    long getDeliveryFailures();
+
+    /**
+     * @return The number of messages discarded because an outbound queue was full.
+     */
+    long getMessagesSkipped();
+
+    /**
+     * @return The number of participants evicted because they could not keep up.
+     */
+    long getParticipantsEvicted();
+
+    /**
+     * @return The number of participants disconnected because their lease expired.
+     */
+    long getParticipantsExpired();
+
+    /**
+     * @return The number of broadcasts rejected by flood control.
+     */
+    long getBroadcastsRejected();
+
+    /**
+     * @return The number of messages that could not be relayed to another server in the
+     *         federation, because that server was unreachable for so long that its link became
+     *         full.
+     */
+    long getRelayedMessagesDropped();
+
+    /**
+     * @return The time it takes to place a broadcasted message in the outbound queues of all room
+     *         members.
+     */
+    LatencySnapshot getBroadcastFanOut();
+
+    /**
+     * @return The duration of each call to a participant's remote node.
+     */
+    LatencySnapshot getRemoteCallLatency();
+
+    /**
+     * @return The duration of a login, including the replay of recent history.
+     */
+    LatencySnapshot getLoginReplay();
+}
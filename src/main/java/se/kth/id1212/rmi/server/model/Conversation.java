@@ -23,30 +23,391 @@
  */
 package se.kth.id1212.rmi.server.model;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import se.kth.id1212.rmi.server.integration.ConversationJournal;
 
 /**
- * Holds the entire conversation, including all messages from all clients. All methods are thread
- * safe.
+ * Holds the retained part of the conversation, including messages from all clients. All methods
+ * are thread safe.
+ * <p>
+ * Entries are stored in an append-only log of fixed-size segments, appending an entry never copies
+ * previously appended entries. Each entry has an index, which is its position in the entire
+ * conversation. The first entry ever appended has index zero. Old entries are evicted according to
+ * the retention limits, one whole segment at a time. A segment is only evicted when all entries in
+ * it are outside the limits, and the most recent segment is never evicted. This means the
+ * conversation may hold slightly more than the limits, but never less.
+ * <p>
+ * A conversation can be persistent, in which case all entries are also written to a journal. An
+ * entry is appended to the journal before it is appended to the conversation, and
+ * <code>appendEntry</code> does not return until the entry is durable.
+ * <p>
+ * All retained entries are indexed by the words they contain and by their sender, the index is
+ * updated as entries are appended and evicted. This means a search does not read any entries
+ * except those it finds.
  */
 public class Conversation {
-    private final List<String> entries = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The default maximum number of retained entries.
+     */
+    public static final long DEFAULT_MAX_ENTRIES = 100_000;
+    /**
+     * The default maximum size, in bytes, of all retained entries.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /**
+     * The default maximum age, in milliseconds, of retained entries.
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final int SEGMENT_SIZE = 1024;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final long maxEntries;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final ConversationJournal journal;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private long firstIndex;
+    private long nextIndex;
+    private long retainedBytes;
+
+    /**
+     * Creates a new, empty, conversation with the default retention limits.
+     */
+    public Conversation() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Creates a new, empty, conversation with the specified retention limits.
+     *
+     * @param maxEntries   The maximum number of retained entries.
+     * @param maxBytes     The maximum size, in bytes, of all retained entries. The size of an
+     *                     entry is approximated as two bytes per character.
+     * @param maxAgeMillis The maximum age, in milliseconds, of retained entries.
+     */
+    public Conversation(long maxEntries, long maxBytes, long maxAgeMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.journal = null;
+    }
+
+    /**
+     * Creates a new persistent conversation with the specified retention limits. The conversation
+     * is restored from the specified journal, only the entries within the retention limits are
+     * read.
+     *
+     * @param maxEntries   The maximum number of retained entries.
+     * @param maxBytes     The maximum size, in bytes, of all retained entries. The size of an
+     *                     entry is approximated as two bytes per character.
+     * @param maxAgeMillis The maximum age, in milliseconds, of retained entries.
+     * @param journal      All appended entries are written to this journal.
+     * @throws IOException If the journal could not be read.
+     */
+    public Conversation(long maxEntries, long maxBytes, long maxAgeMillis,
+                        ConversationJournal journal) throws IOException {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.journal = journal;
+        long now = System.currentTimeMillis();
+        journal.readTail(maxEntries, maxBytes, now - maxAgeMillis, this::restoreEntry);
+        evictExpiredSegments(now);
+    }
+
+    /**
+     * Handles entries read from the conversation.
+     */
+    public interface EntryHandler {
+        /**
+         * Called once for each entry that is read.
+         *
+         * @param index     The entry's index in the conversation.
+         * @param timestamp The time the entry was appended.
+         * @param entry     The entry.
+         */
+        void handle(long index, long timestamp, String entry);
+    }
 
     /**
      * Appends the specified entry to the conversation.
      *
      * @param entry The entry to append.
+     * @return The index of the appended entry.
+     * @throws UncheckedIOException If this conversation is persistent, and the entry could not be
+     *                              written to the journal.
+     */
+    public long appendEntry(String entry) {
+        return appendEntry(entry, System.currentTimeMillis());
+    }
+
+    /**
+     * Appends the specified entry to the conversation.
+     *
+     * @param entry     The entry to append.
+     * @param timestamp The time the entry was appended, in milliseconds since the epoch.
+     * @return The index of the appended entry.
+     * @throws UncheckedIOException If this conversation is persistent, and the entry could not be
+     *                              written to the journal.
      */
-    public void appendEntry(String entry) {
-        entries.add(entry);
+    public long appendEntry(String entry, long timestamp) {
+        return appendEntry(entry, timestamp, (index, appendedAt, appended) -> {
+        });
     }
 
     /**
-     * @return All entries in the conversation, in the order they were entered.
+     * Appends the specified entry to the conversation, and calls the specified handler with the
+     * index given to the entry. The handler is called while this conversation is locked, which
+     * means handlers are called in the same order as entries are appended. The handler is called
+     * before the entry is durable, and must not block.
+     *
+     * @param entry      The entry to append.
+     * @param timestamp  The time the entry was appended, in milliseconds since the epoch.
+     * @param onAppended Called once, when the entry has been given its index.
+     * @return The index of the appended entry.
+     * @throws UncheckedIOException If this conversation is persistent, and the entry could not be
+     *                              written to the journal.
+     */
+    public long appendEntry(String entry, long timestamp, EntryHandler onAppended) {
+        long index;
+        long journalPosition;
+        synchronized (this) {
+            index = nextIndex;
+            journalPosition = writeToJournal(index, timestamp, entry);
+            appendToLastSegment(entry, timestamp);
+            nextIndex++;
+            evictExpiredSegments(timestamp);
+            onAppended.handle(index, timestamp, entry);
+        }
+        syncJournal(journalPosition);
+        return index;
+    }
+
+    /**
+     * @return The index of the oldest retained entry. If the conversation is empty, this is the
+     *         index that will be given to the next appended entry.
      */
-    public String[] getConversation() {
-        return entries.toArray(new String[0]);
+    public synchronized long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return The index that will be given to the next appended entry. This is also the number of
+     *         entries that have ever been appended to the conversation.
+     */
+    public synchronized long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Returns consecutive entries, starting with the entry at the specified index.
+     *
+     * @param fromIndex  The index of the first returned entry. If this entry is no longer
+     *                   retained, the oldest retained entry is the first returned entry.
+     * @param maxEntries The maximum number of returned entries.
+     * @return The entries with index <code>fromIndex</code> and higher, in the order they were
+     *         entered. Fewer than <code>maxEntries</code> entries are returned if the end of the
+     *         conversation is reached.
+     */
+    public synchronized String[] getEntries(long fromIndex, int maxEntries) {
+        long from = Math.max(fromIndex, firstIndex);
+        long to = Math.min(from + Math.max(maxEntries, 0), nextIndex);
+        List<String> found = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.endIndex() <= from) {
+                continue;
+            }
+            if (segment.baseIndex >= to) {
+                break;
+            }
+            segment.copyTo(found, from, to);
+        }
+        return found.toArray(new String[0]);
+    }
+
+    /**
+     * Reads consecutive entries, with their indexes and timestamps, starting with the entry at the
+     * specified index. The handler is called while this conversation is locked, it must not block.
+     *
+     * @param fromIndex  The index of the first entry read. If this entry is no longer retained,
+     *                   the oldest retained entry is the first entry read.
+     * @param maxEntries The maximum number of entries read.
+     * @param handler    Called once for each entry, in the order the entries were entered.
+     */
+    public synchronized void readEntries(long fromIndex, int maxEntries, EntryHandler handler) {
+        long from = Math.max(fromIndex, firstIndex);
+        long to = Math.min(from + Math.max(maxEntries, 0), nextIndex);
+        for (Segment segment : segments) {
+            if (segment.endIndex() <= from) {
+                continue;
+            }
+            if (segment.baseIndex >= to) {
+                break;
+            }
+            segment.visit(handler, from, to);
+        }
+    }
+
+    /**
+     * Reads the most recent entries that contain all the specified words, and were written by the
+     * specified sender. Words are matched regardless of case. The handler is called while this
+     * conversation is locked, it must not block.
+     *
+     * @param keywords   The words to search for, separated by blanks or punctuation.
+     * @param sender     The username of the sender, or <code>null</code> to search entries by
+     *                   all senders.
+     * @param before     Only entries with a lower index than this are read.
+     * @param maxEntries The maximum number of entries read.
+     * @param handler    Called once for each found entry, in the order the entries were entered.
+     * @return <code>true</code> if there are more matching entries before those that were read,
+     *         <code>false</code> if there are not.
+     */
+    public synchronized boolean search(String keywords, String sender, long before,
+                                       int maxEntries, EntryHandler handler) {
+        int pageSize = Math.max(maxEntries, 0);
+        long[] matches = searchIndex.search(SearchIndex.tokenize(keywords, 0), sender, before,
+                                            pageSize + 1);
+        int found = Math.min(matches.length, pageSize);
+        String[] entries = new String[found];
+        long[] timestamps = new long[found];
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        Segment segment = null;
+        for (int i = 0; i < found; i++) {
+            while (segment == null || segment.baseIndex > matches[i]) {
+                segment = newestFirst.next();
+            }
+            int offset = (int) (matches[i] - segment.baseIndex);
+            entries[i] = segment.entries[offset];
+            timestamps[i] = segment.timestamps[offset];
+        }
+        for (int i = found - 1; i >= 0; i--) {
+            handler.handle(matches[i], timestamps[i], entries[i]);
+        }
+        return matches.length > pageSize;
+    }
+
+    /**
+     * @return All retained entries in the conversation, in the order they were entered.
+     */
+    public synchronized String[] getConversation() {
+        List<String> found = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.copyTo(found, firstIndex, nextIndex);
+        }
+        return found.toArray(new String[0]);
+    }
+
+    private void restoreEntry(long index, long timestamp, String entry) {
+        if (segments.isEmpty()) {
+            firstIndex = index;
+            nextIndex = index;
+        }
+        appendToLastSegment(entry, timestamp);
+        nextIndex++;
+    }
+
+    private void appendToLastSegment(String entry, long timestamp) {
+        Segment last = segments.peekLast();
+        if (last == null || last.isFull()) {
+            last = new Segment(nextIndex);
+            segments.addLast(last);
+        }
+        last.append(entry, timestamp);
+        searchIndex.add(nextIndex, entry);
+        retainedBytes += sizeOf(entry);
+    }
+
+    private long writeToJournal(long index, long timestamp, String entry) {
+        if (journal == null) {
+            return 0;
+        }
+        try {
+            return journal.write(index, timestamp, entry);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void syncJournal(long position) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.sync(position);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void evictExpiredSegments(long now) {
+        while (segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            boolean tooMany = nextIndex - oldest.endIndex() >= maxEntries;
+            boolean tooLarge = retainedBytes - oldest.bytes >= maxBytes;
+            boolean tooOld = now - oldest.newestTimestamp() > maxAgeMillis;
+            if (!tooMany && !tooLarge && !tooOld) {
+                return;
+            }
+            segments.removeFirst();
+            retainedBytes -= oldest.bytes;
+            firstIndex = oldest.endIndex();
+            searchIndex.evictBefore(firstIndex);
+        }
+    }
+
+    private static long sizeOf(String entry) {
+        return 2L * entry.length();
+    }
+
+    private static class Segment {
+        private final long baseIndex;
+        private final String[] entries = new String[SEGMENT_SIZE];
+        private final long[] timestamps = new long[SEGMENT_SIZE];
+        private int count;
+        private long bytes;
+
+        Segment(long baseIndex) {
+            this.baseIndex = baseIndex;
+        }
+
+        boolean isFull() {
+            return count == SEGMENT_SIZE;
+        }
+
+        void append(String entry, long timestamp) {
+            entries[count] = entry;
+            timestamps[count] = timestamp;
+            count++;
+            bytes += sizeOf(entry);
+        }
+
+        long endIndex() {
+            return baseIndex + count;
+        }
+
+        long newestTimestamp() {
+            return timestamps[count - 1];
+        }
+
+        void visit(EntryHandler handler, long fromIndex, long toIndex) {
+            int from = (int) (Math.max(fromIndex, baseIndex) - baseIndex);
+            int to = (int) (Math.min(toIndex, endIndex()) - baseIndex);
+            for (int i = from; i < to; i++) {
+                handler.handle(baseIndex + i, timestamps[i], entries[i]);
+            }
+        }
+
+        void copyTo(List<String> dest, long fromIndex, long toIndex) {
+            int from = (int) (Math.max(fromIndex, baseIndex) - baseIndex);
+            int to = (int) (Math.min(toIndex, endIndex()) - baseIndex);
+            for (int i = from; i < to; i++) {
+                dest.add(entries[i]);
+            }
+        }
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+/**
+ * Decides how the server treats participants that can not keep up with the messages sent to them.
+ * A participant is disconnected if too many deliveries in a row fail, if the oldest undelivered
+ * message has waited too long, or if calls to its remote node are too slow on average. When a
+ * participant's outbound queue is full, messages are dropped according to the overflow policy.
+ * <p>
+ * Each participant also holds a lease, which is renewed whenever the participant pings the server
+ * or broadcasts a message, and whenever a message is delivered to it. A participant whose lease
+ * has expired is assumed to have crashed, and is disconnected.
+ * <p>
+ * A message broadcasted in a large room is placed in the members' outbound queues by several
+ * threads in parallel, the number of fan-out threads is also part of the policy.
+ */
+public class DeliveryPolicy {
+    /**
+     * Specifies what happens to a message sent to a participant whose outbound queue is full.
+     */
+    public enum Overflow {
+        /**
+         * The new message is discarded.
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest undelivered message is discarded, to make room for the new message.
+         */
+        DROP_OLDEST,
+        /**
+         * The new message is discarded, and the participant later receives a message telling how
+         * many messages were skipped.
+         */
+        SUMMARIZE
+    }
+
+    /**
+     * The policy used if no other policy is specified.
+     */
+    public static final DeliveryPolicy DEFAULT
+            = new DeliveryPolicy(1000, Overflow.SUMMARIZE, 3, 60_000, 10_000, 90_000,
+                                 Runtime.getRuntime().availableProcessors());
+    private final int queueCapacity;
+    private final Overflow overflow;
+    private final int maxConsecutiveFailures;
+    private final long maxLagMillis;
+    private final long maxLatencyMillis;
+    private final long leaseMillis;
+    private final int fanOutThreads;
+
+    /**
+     * Creates a new instance with the specified limits.
+     *
+     * @param queueCapacity          The maximum number of undelivered messages to a participant.
+     * @param overflow               What happens to messages sent to a participant whose queue is
+     *                               full.
+     * @param maxConsecutiveFailures A participant is disconnected when this many deliveries in a
+     *                               row have failed.
+     * @param maxLagMillis           A participant is disconnected when the oldest undelivered
+     *                               message has waited this many milliseconds.
+     * @param maxLatencyMillis       A participant is disconnected when the smoothed average
+     *                               duration of calls to its remote node exceeds this many
+     *                               milliseconds. Zero means there is no such limit.
+     * @param leaseMillis            A participant is disconnected when its lease has not been
+     *                               renewed for this many milliseconds. Zero means participants
+     *                               are never disconnected because of an expired lease.
+     * @param fanOutThreads          The number of threads, including the broadcasting thread,
+     *                               that place a message broadcasted in a large room in the
+     *                               members' outbound queues. One means there is no parallel
+     *                               fan-out.
+     */
+    public DeliveryPolicy(int queueCapacity, Overflow overflow, int maxConsecutiveFailures,
+                          long maxLagMillis, long maxLatencyMillis, long leaseMillis,
+                          int fanOutThreads) {
+        this.queueCapacity = queueCapacity;
+        this.overflow = overflow;
+        this.maxConsecutiveFailures = maxConsecutiveFailures;
+        this.maxLagMillis = maxLagMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.leaseMillis = leaseMillis;
+        this.fanOutThreads = fanOutThreads;
+    }
+
+    /**
+     * @return The maximum number of undelivered messages to a participant.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return What happens to messages sent to a participant whose queue is full.
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return The number of failed deliveries in a row after which a participant is disconnected.
+     */
+    public int getMaxConsecutiveFailures() {
+        return maxConsecutiveFailures;
+    }
+
+    /**
+     * @return The number of milliseconds the oldest undelivered message may wait before the
+     *         participant is disconnected.
+     */
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /**
+     * @return The smoothed average duration, in milliseconds, of calls to a participant's remote
+     *         node above which the participant is disconnected. Zero means there is no limit.
+     */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * @return The number of milliseconds after which a participant's lease expires, unless it is
+     *         renewed. Zero means leases never expire.
+     */
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * @return The number of threads, including the broadcasting thread, that place a message
+     *         broadcasted in a large room in the members' outbound queues.
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+}
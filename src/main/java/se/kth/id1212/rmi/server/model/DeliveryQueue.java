@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.server.metrics.ServerMetrics;
+
+/**
+ * The outbound messages of one participant. Messages are placed in a bounded queue, and are
+ * delivered to the participant's remote node by a task executed in the delivery executor. At most
+ * one such task is running for each queue, which means messages are delivered in the same order as
+ * they were enqueued.
+ * <p>
+ * Pending messages are coalesced, and delivered in batches through
+ * <code>ChatClient.recvMessages</code>. A batch is flushed as soon as it is full, or when the flush
+ * delay has passed since the first message was enqueued. Remote nodes that do not support
+ * <code>recvMessages</code> get the text of each message through <code>ChatClient.recvMsgs</code>,
+ * and remote nodes that do not support that either get the texts one by one, through
+ * <code>ChatClient.recvMsg</code>.
+ * <p>
+ * A batch whose delivery fails is not discarded, it is delivered again after a delay, before any
+ * later message. Clients use the sequence numbers of messages to ignore a message they have
+ * already received, in case the failure happened after the client received the batch. The queue
+ * tracks delivery latency, failures and the age of the oldest undelivered message, and reports a
+ * slow consumer according to the delivery policy. After that, the queue is closed and discards all
+ * messages.
+ */
+class DeliveryQueue {
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long FLUSH_DELAY_MILLIS = 2;
+    private static final long PUT_POLL_MILLIS = 100;
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private final BlockingQueue<Pending> pending;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicLong skipped = new AtomicLong();
+    private final ChatClient remoteNode;
+    private final Executor executor;
+    private final ScheduledExecutorService flushTimer;
+    private final DeliveryPolicy policy;
+    private final ServerMetrics metrics;
+    private final Runnable slowConsumerHandler;
+    private volatile boolean envelopesSupported = true;
+    private volatile boolean batchesSupported = true;
+    private volatile boolean closed;
+    private volatile long averageLatencyNanos;
+    private volatile long lastDeliveryNanos = System.nanoTime();
+    private volatile Pending oldestInFlight;
+    private int consecutiveFailures;
+    private long reportedSkips;
+    private ChatMessage[] failedBatch;
+
+    /**
+     * Creates a new, empty, queue.
+     *
+     * @param remoteNode          The remote endpoint to which messages are delivered.
+     * @param executor            The executor in which messages are delivered.
+     * @param flushTimer          Schedules delayed flushes of batches that are not full.
+     * @param policy              Decides how to handle a remote node that can not keep up.
+     * @param metrics             Records delivery latency, failures and skipped messages.
+     * @param slowConsumerHandler Called once, when the delivery policy decides that the remote
+     *                            node shall be disconnected.
+     */
+    DeliveryQueue(ChatClient remoteNode, Executor executor, ScheduledExecutorService flushTimer,
+                  DeliveryPolicy policy, ServerMetrics metrics, Runnable slowConsumerHandler) {
+        this.remoteNode = remoteNode;
+        this.executor = executor;
+        this.flushTimer = flushTimer;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.slowConsumerHandler = slowConsumerHandler;
+        this.pending = new ArrayBlockingQueue<>(policy.getQueueCapacity());
+    }
+
+    /**
+     * Enqueues the specified message. If the queue is full, the overflow policy decides which
+     * message is discarded. This method never blocks.
+     *
+     * @param msg The message to deliver.
+     */
+    void offer(ChatMessage msg) {
+        if (closed || lagLimitExceeded()) {
+            return;
+        }
+        Pending newMsg = new Pending(msg);
+        while (!pending.offer(newMsg)) {
+            if (policy.getOverflow() != DeliveryPolicy.Overflow.DROP_OLDEST) {
+                messageSkipped();
+                break;
+            }
+            if (pending.poll() != null) {
+                messageSkipped();
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Enqueues the specified message, waiting for free space if the queue is full. Returns
+     * without enqueueing the message if the queue is closed while waiting.
+     *
+     * @param msg The message to deliver.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void put(ChatMessage msg) throws InterruptedException {
+        Pending newMsg = new Pending(msg);
+        scheduleDrain();
+        while (!pending.offer(newMsg, PUT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed || lagLimitExceeded()) {
+                return;
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Reports a slow consumer if the oldest undelivered message has waited longer than the
+     * delivery policy allows. The age is also checked whenever a message is enqueued, this method
+     * is called periodically to catch a remote node that stalls while no messages are sent to it.
+     */
+    void checkLag() {
+        if (!closed) {
+            lagLimitExceeded();
+        }
+    }
+
+    /**
+     * @return The number of undelivered messages.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of messages discarded because the queue was full.
+     */
+    long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return The smoothed average time, in nanoseconds, of a call to the remote node.
+     */
+    long getAverageLatencyNanos() {
+        return averageLatencyNanos;
+    }
+
+    /**
+     * @return The value of <code>System.nanoTime</code> when a message was last delivered, or when
+     *         this queue was created if no message has been delivered.
+     */
+    long getLastDeliveryNanos() {
+        return lastDeliveryNanos;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            if (pending.size() >= MAX_BATCH_SIZE) {
+                executor.execute(this::drain);
+            } else {
+                flushTimer.schedule(() -> executor.execute(this::drain), FLUSH_DELAY_MILLIS,
+                                    TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void scheduleRetry() {
+        if (draining.compareAndSet(false, true)) {
+            flushTimer.schedule(() -> executor.execute(this::drain),
+                                RETRY_DELAY_MILLIS * consecutiveFailures, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        try {
+            if (failedBatch != null && deliver(failedBatch)) {
+                failedBatch = null;
+                oldestInFlight = null;
+            }
+            List<Pending> batch = new ArrayList<>();
+            while (!closed && failedBatch == null && pending.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+                List<ChatMessage> msgs = new ArrayList<>(batch.size() + 1);
+                for (Pending msg : batch) {
+                    msgs.add(msg.msg);
+                }
+                if (policy.getOverflow() == DeliveryPolicy.Overflow.SUMMARIZE) {
+                    long totalSkips = skipped.get();
+                    if (totalSkips > reportedSkips) {
+                        msgs.add(ChatMessage.notice("[" + (totalSkips - reportedSkips)
+                                                    + " messages were skipped]"));
+                        reportedSkips = totalSkips;
+                    }
+                }
+                ChatMessage[] msgArray = msgs.toArray(new ChatMessage[0]);
+                oldestInFlight = batch.get(0);
+                if (deliver(msgArray)) {
+                    oldestInFlight = null;
+                } else {
+                    failedBatch = msgArray;
+                }
+                batch.clear();
+            }
+        } finally {
+            draining.set(false);
+        }
+        if (closed) {
+            return;
+        }
+        if (failedBatch != null) {
+            scheduleRetry();
+        } else if (!pending.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private boolean deliver(ChatMessage[] batch) {
+        long startTime = System.nanoTime();
+        try {
+            if (envelopesSupported) {
+                try {
+                    remoteNode.recvMessages(batch);
+                    deliverySucceeded(startTime, batch.length);
+                    return true;
+                } catch (ServerException se) {
+                    if (!isUnknownMethod(se)) {
+                        throw se;
+                    }
+                    envelopesSupported = false;
+                }
+            }
+            String[] texts = new String[batch.length];
+            for (int i = 0; i < batch.length; i++) {
+                texts[i] = batch[i].toString();
+            }
+            if (texts.length > 1 && batchesSupported) {
+                try {
+                    remoteNode.recvMsgs(texts);
+                    deliverySucceeded(startTime, batch.length);
+                    return true;
+                } catch (ServerException se) {
+                    if (!isUnknownMethod(se)) {
+                        throw se;
+                    }
+                    batchesSupported = false;
+                }
+            }
+            for (String text : texts) {
+                remoteNode.recvMsg(text);
+            }
+            deliverySucceeded(startTime, batch.length);
+            return true;
+        } catch (RemoteException | RuntimeException deliveryFailed) {
+            metrics.remoteCallFailed();
+            if (++consecutiveFailures >= policy.getMaxConsecutiveFailures()) {
+                close();
+            }
+            return false;
+        }
+    }
+
+    private static boolean isUnknownMethod(ServerException se) {
+        return se.getCause() instanceof UnmarshalException;
+    }
+
+    private void deliverySucceeded(long startTime, int messageCount) {
+        long now = System.nanoTime();
+        long latency = now - startTime;
+        lastDeliveryNanos = now;
+        metrics.remoteCallSucceeded(latency, messageCount);
+        averageLatencyNanos += (latency - averageLatencyNanos) >> LATENCY_SMOOTHING_SHIFT;
+        consecutiveFailures = 0;
+        if (policy.getMaxLatencyMillis() > 0
+            && averageLatencyNanos > TimeUnit.MILLISECONDS.toNanos(policy.getMaxLatencyMillis())) {
+            close();
+        }
+    }
+
+    private void messageSkipped() {
+        skipped.incrementAndGet();
+        metrics.messageSkipped();
+    }
+
+    private boolean lagLimitExceeded() {
+        Pending oldest = oldestInFlight;
+        if (oldest == null) {
+            oldest = pending.peek();
+        }
+        if (oldest == null || oldest.ageMillis() < policy.getMaxLagMillis()) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    private synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.clear();
+        slowConsumerHandler.run();
+    }
+
+    private static class Pending {
+        private final ChatMessage msg;
+        private final long enqueuedAt = System.nanoTime();
+
+        Pending(ChatMessage msg) {
+            this.msg = msg;
+        }
+
+        long ageMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueuedAt);
+        }
+    }
+}
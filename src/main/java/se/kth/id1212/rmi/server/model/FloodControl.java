@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+/**
+ * Limits how many messages participants may broadcast. Each participant has its own limit, and
+ * there is also a limit for all participants together. A limit is specified as a sustained rate,
+ * and a burst, which is the number of messages that may be broadcasted at once after a period of
+ * silence. A rate of zero means there is no limit.
+ */
+public class FloodControl {
+    /**
+     * The limits used if no other limits are specified.
+     */
+    public static final FloodControl DEFAULT = new FloodControl(20, 40, 10_000, 20_000);
+    /**
+     * Does not limit broadcasts at all.
+     */
+    public static final FloodControl UNLIMITED = new FloodControl(0, 0, 0, 0);
+    private final double participantRate;
+    private final int participantBurst;
+    private final double globalRate;
+    private final int globalBurst;
+
+    /**
+     * Creates a new instance with the specified limits.
+     *
+     * @param participantRate  The sustained number of messages per second that one participant
+     *                         may broadcast.
+     * @param participantBurst The number of messages one participant may broadcast at once.
+     * @param globalRate       The sustained number of messages per second that all participants
+     *                         together may broadcast.
+     * @param globalBurst      The number of messages all participants together may broadcast at
+     *                         once.
+     */
+    public FloodControl(double participantRate, int participantBurst, double globalRate,
+                        int globalBurst) {
+        this.participantRate = participantRate;
+        this.participantBurst = participantBurst;
+        this.globalRate = globalRate;
+        this.globalBurst = globalBurst;
+    }
+
+    /**
+     * @return The sustained number of messages per second that one participant may broadcast.
+     */
+    public double getParticipantRate() {
+        return participantRate;
+    }
+
+    /**
+     * @return The number of messages one participant may broadcast at once.
+     */
+    public int getParticipantBurst() {
+        return participantBurst;
+    }
+
+    /**
+     * @return The sustained number of messages per second that all participants together may
+     *         broadcast.
+     */
+    public double getGlobalRate() {
+        return globalRate;
+    }
+
+    /**
+     * @return The number of messages all participants together may broadcast at once.
+     */
+    public int getGlobalBurst() {
+        return globalBurst;
+    }
+}
@@ -23,22 +23,29 @@
  */
 package se.kth.id1212.rmi.server.model;
 
-import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.HistoryPage;
 import se.kth.id1212.rmi.common.MessageException;
 
 /**
- * Represents someone participating in the chat conversation.
+ * Represents someone participating in the chat conversation. A participant is a member of one or
+ * more chat rooms.
  */
 public class Participant {
     private static final String JOIN_MESSAGE = " joined conversation.";
     private static final String LEAVE_MESSAGE = " left conversation.";
-    private static final String USERNAME_DELIMETER = ": ";
     private static final String DEFAULT_USERNAME = "anonymous";
     private final long id;
     private final ChatClient remoteNode;
     private final ParticipantManager participantMgr;
-    private String username;
+    private final DeliveryQueue outbound;
+    private final RateLimiter broadcastLimiter;
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private volatile long leaseRenewedNanos = System.nanoTime();
+    private volatile String username;
 
     /**
      * Creates a new instance with the specified username and remote node.
@@ -53,6 +60,11 @@ public class Participant {
         this.username = username;
         this.remoteNode = remoteNode;
         this.participantMgr = mgr;
+        this.outbound = new DeliveryQueue(remoteNode, mgr.getDeliveryExecutor(),
+                                          mgr.getFlushTimer(), mgr.getDeliveryPolicy(),
+                                          mgr.getMetrics(), () -> mgr.evictParticipant(this));
+        this.broadcastLimiter = new RateLimiter(mgr.getFloodControl().getParticipantRate(),
+                                                mgr.getFloodControl().getParticipantBurst());
     }
 
     /**
@@ -67,25 +79,194 @@ public class Participant {
     }
 
     /**
-     * Send the specified message to the participant's remote node.
+     * Send the specified message to the participant's remote node. The message is placed in this
+     * participant's outbound queue, and this method returns without waiting for it to be
+     * delivered. If the queue is full, a message is discarded according to the delivery policy,
+     * since a participant that can not keep up must not delay other participants.
      *
      * @param msg The message to send.
      */
-    public void send(String msg) {
+    public void send(ChatMessage msg) {
+        outbound.offer(msg);
+    }
+
+    /**
+     * Send all the specified messages to the participant's remote node, in the order they appear
+     * in the array. Unlike <code>send</code>, this method waits for free space in the outbound
+     * queue instead of discarding messages.
+     *
+     * @param msgs The messages to send.
+     */
+    public void sendAll(ChatMessage[] msgs) {
         try {
-            remoteNode.recvMsg(msg);
-        } catch (RemoteException re) {
-            throw new MessageException("Failed to deliver message to " + username + ".");
+            for (ChatMessage msg : msgs) {
+                outbound.put(msg);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new MessageException("Failed to deliver messages to " + username + ".");
         }
     }
 
     /**
-     * Send the specified message to all participants in the conversation, including myself.
+     * Send the specified message to all participants in the specified room, including myself.
      *
-     * @param msg The message to send.
+     * @param roomName The name of the room. This participant must be a member of the room.
+     * @param msg      The message to send.
+     * @throws MessageException If this participant is not a member of the room.
+     */
+    public void broadcast(String roomName, String msg) {
+        findJoinedRoom(roomName).broadcast(username, msg);
+    }
+
+    /**
+     * Makes this participant a member of the specified room. Nothing happens if this participant
+     * is already a member of the room.
+     *
+     * @param room The room to join.
+     */
+    public void joinRoom(Room room) {
+        joinRoom(room, ChatMessage.NO_SEQUENCE);
+    }
+
+    /**
+     * Makes this participant a member of the specified room, and sends the entries after the
+     * specified sequence number. Nothing happens if this participant is already a member of the
+     * room.
+     *
+     * @param room     The room to join.
+     * @param lastSeen The sequence number of the last entry in the room that this participant has
+     *                 seen, or <code>ChatMessage.NO_SEQUENCE</code> if it has not seen any entry.
+     */
+    public void joinRoom(Room room, long lastSeen) {
+        if (rooms.putIfAbsent(room.getName(), room) == null) {
+            room.join(this, lastSeen);
+        }
+    }
+
+    /**
+     * Removes this participant from the specified room.
+     *
+     * @param roomName The name of the room to leave.
+     * @throws MessageException If this participant is not a member of the room.
+     */
+    public void leaveRoom(String roomName) {
+        findJoinedRoom(roomName).leave(this);
+        rooms.remove(roomName);
+    }
+
+    /**
+     * Returns entries from the conversation of the specified room, ending immediately before the
+     * specified cursor.
+     *
+     * @param roomName   The name of the room. This participant must be a member of the room.
+     * @param before     The returned page ends with the entry immediately before this index, or
+     *                   immediately before the entries sent when this participant joined if this
+     *                   is <code>HistoryPage.BEFORE_LOGIN_REPLAY</code>.
+     * @param maxEntries The maximum number of entries on the returned page.
+     * @return The requested page of history.
+     * @throws MessageException If this participant is not a member of the room.
+     */
+    public HistoryPage getHistory(String roomName, long before, int maxEntries) {
+        return findJoinedRoom(roomName).getHistory(this, before, maxEntries);
+    }
+
+    /**
+     * Searches the conversation of the specified room, the most recent matching entries are
+     * returned first.
+     *
+     * @param roomName   The name of the room. This participant must be a member of the room.
+     * @param keywords   The words that all found entries contain.
+     * @param sender     The username of the sender of all found entries, or <code>null</code>
+     *                   to search entries by all senders.
+     * @param before     The returned page ends with the last matching entry before this index,
+     *                   or with the last matching entry in the room if this is
+     *                   <code>HistoryPage.AFTER_NEWEST</code>.
+     * @param maxEntries The maximum number of entries on the returned page.
+     * @return The requested page of matching entries.
+     * @throws MessageException If this participant is not a member of the room, or if neither
+     *                          words nor a sender are specified.
+     */
+    public HistoryPage search(String roomName, String keywords, String sender, long before,
+                              int maxEntries) {
+        return findJoinedRoom(roomName).search(keywords, sender, before, maxEntries);
+    }
+
+    /**
+     * Renews this participant's lease, telling that the participant's remote node is still alive.
+     */
+    public void renewLease() {
+        leaseRenewedNanos = System.nanoTime();
+    }
+
+    /**
+     * Checks if this participant's lease has expired. A successful delivery to the participant's
+     * remote node counts as a renewal of the lease.
+     *
+     * @param now         The current value of <code>System.nanoTime</code>.
+     * @param leaseNanos  The duration of a lease, in nanoseconds.
+     * @return <code>true</code> if the lease was neither renewed nor a message delivered during
+     *         the specified duration, <code>false</code> otherwise.
      */
-    public void broadcast(String msg) {
-        participantMgr.broadcast(username + USERNAME_DELIMETER + msg);
+    boolean isLeaseExpired(long now, long leaseNanos) {
+        return now - leaseRenewedNanos > leaseNanos
+               && now - outbound.getLastDeliveryNanos() > leaseNanos;
+    }
+
+    /**
+     * Consumes one of the broadcasts this participant is allowed to make. This method never
+     * blocks.
+     *
+     * @return <code>true</code> if this participant may broadcast, <code>false</code> if it has
+     *         exceeded its message rate.
+     */
+    boolean tryAcquireBroadcastPermit() {
+        return broadcastLimiter.tryAcquire();
+    }
+
+    /**
+     * @return The policy that decides how messages to this participant are delivered.
+     */
+    DeliveryPolicy getDeliveryPolicy() {
+        return participantMgr.getDeliveryPolicy();
+    }
+
+    /**
+     * @return The number of undelivered messages in this participant's outbound queue.
+     */
+    int getPendingCount() {
+        return outbound.getPendingCount();
+    }
+
+    /**
+     * @return The number of messages to this participant that were discarded because its outbound
+     *         queue was full.
+     */
+    long getSkippedCount() {
+        return outbound.getSkippedCount();
+    }
+
+    /**
+     * @return The smoothed average time, in nanoseconds, of a call to this participant's remote
+     *         node.
+     */
+    long getAverageDeliveryLatencyNanos() {
+        return outbound.getAverageLatencyNanos();
+    }
+
+    /**
+     * Disconnects this participant if the oldest message in its outbound queue has waited longer
+     * than the delivery policy allows.
+     */
+    void checkDeliveryLag() {
+        outbound.checkLag();
+    }
+
+    /**
+     * @return The unique identifier of this participant.
+     */
+    long getId() {
+        return id;
     }
 
     /**
@@ -100,18 +281,46 @@ public class Participant {
     }
 
     /**
+     * @return The username of this participant.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Sets a new username. Use <code>ParticipantManager.changeUsername</code> to change the
+     * username of a logged in participant, since the manager indexes participants by username.
+     *
      * @param username The new username of this participant.
      */
     public void changeUsername(String username) {
         this.username = username;
-        broadcast(username + JOIN_MESSAGE);
+        broadcastToAllRooms(username + JOIN_MESSAGE);
     }
 
     /**
-     * Inform other participants that this participant is leaving the conversation.
+     * Inform other participants that this participant is leaving the conversation, and leave all
+     * rooms.
      */
     public void leaveConversation() {
-        broadcast(username + LEAVE_MESSAGE);
+        broadcastToAllRooms(username + LEAVE_MESSAGE);
+        for (Room room : rooms.values()) {
+            room.leave(this);
+        }
+        rooms.clear();
     }
 
+    private void broadcastToAllRooms(String msg) {
+        for (Room room : rooms.values()) {
+            room.broadcast(username, msg);
+        }
+    }
+
+    private Room findJoinedRoom(String roomName) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            throw new MessageException("Not a member of room " + roomName + ".");
+        }
+        return room;
+    }
 }
@@ -23,40 +23,157 @@
  */
 package se.kth.id1212.rmi.server.model;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.ChatServer;
 import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.FloodControlException;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.server.metrics.ServerMetrics;
 
 /**
- * Keeps track of all active participants in the conversation, and is also responsible for sending
- * messages to participants.
+ * Keeps track of all active participants and all chat rooms, and is also responsible for sending
+ * messages to participants. Messages are delivered asynchronously, each participant has its own
+ * outbound queue which is drained by the delivery executor. Participants that can not keep up
+ * with their messages are evicted, as decided by the delivery policy.
+ * <p>
+ * Participants are kept in a slot table indexed by participant id, and rooms in a concurrent
+ * map. Participants are also indexed by username, regardless of case, which means a direct message
+ * is delivered to its recipient without looking at any other participant. Lookups never block.
+ * Two logged in participants can not have the same username.
+ * <p>
+ * Participants whose lease has expired are removed by a reaper, which scans all participants
+ * twice per lease period. The scan only reads the participants' lease times, the expired
+ * participants are then removed together, in the delivery executor, which means broadcasts are
+ * never blocked by the reaper.
  */
 public class ParticipantManager {
-    private final Random idGenerator = new Random();
-    private final Conversation conversation = new Conversation();
-    private final Map<Long, Participant> participants = Collections.synchronizedMap(new HashMap<>());
+    private static final Pattern VALID_ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final int REAPER_SCANS_PER_LEASE = 2;
+    private static final int LAG_SCANS_PER_LIMIT = 2;
+    private final ConversationFactory conversationFactory;
+    private final DeliveryPolicy deliveryPolicy;
+    private final FloodControl floodControl;
+    private final RateLimiter globalBroadcastLimiter;
+    private final ParticipantTable participants = new ParticipantTable();
+    private final Map<String, Participant> participantsByName = new ConcurrentHashMap<>();
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Executor deliveryExecutor;
+    private final ScheduledExecutorService flushTimer
+            = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService fanOutPool;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private volatile Consumer<ChatMessage> relay = msg -> {
+    };
 
+    /**
+     * Creates a new instance, with no participants. The default room, and all rooms with a stored
+     * conversation, are created.
+     *
+     * @param conversationFactory Creates the conversation of each room.
+     * @param deliveryPolicy      Decides how to handle participants that can not keep up.
+     * @param floodControl        Limits how many messages participants may broadcast.
+     * @param deliveryExecutor    Executes all calls to the remote nodes of participants.
+     * @throws IOException If a stored conversation could not be restored.
+     */
+    public ParticipantManager(ConversationFactory conversationFactory,
+                              DeliveryPolicy deliveryPolicy, FloodControl floodControl,
+                              Executor deliveryExecutor) throws IOException {
+        this.conversationFactory = conversationFactory;
+        this.deliveryPolicy = deliveryPolicy;
+        this.floodControl = floodControl;
+        this.globalBroadcastLimiter = new RateLimiter(floodControl.getGlobalRate(),
+                                                      floodControl.getGlobalBurst());
+        this.deliveryExecutor = deliveryExecutor;
+        this.fanOutPool = deliveryPolicy.getFanOutThreads() > 1
+                          ? Executors.newFixedThreadPool(
+                                  deliveryPolicy.getFanOutThreads() - 1,
+                                  Thread.ofPlatform().name("fan-out-", 0).daemon().factory())
+                          : null;
+        metrics.setGauges(participants::size, rooms::size, this::countRetainedEntries,
+                          this::countPendingDeliveries, this::findSlowestDeliveryLatency,
+                          this::findMostSkippedMessages);
+        long lagScanInterval = Math.max(deliveryPolicy.getMaxLagMillis() / LAG_SCANS_PER_LIMIT, 1);
+        flushTimer.scheduleWithFixedDelay(() -> participants.forEach(Participant::checkDeliveryLag),
+                                          lagScanInterval, lagScanInterval, TimeUnit.MILLISECONDS);
+        long leaseMillis = deliveryPolicy.getLeaseMillis();
+        if (leaseMillis > 0) {
+            long scanInterval = Math.max(leaseMillis / REAPER_SCANS_PER_LEASE, 1);
+            flushTimer.scheduleWithFixedDelay(this::reapExpiredParticipants, scanInterval,
+                                              scanInterval, TimeUnit.MILLISECONDS);
+        }
+        try {
+            for (String roomName : conversationFactory.listStoredRooms()) {
+                findOrCreateRoom(roomName);
+            }
+            findOrCreateRoom(ChatServer.DEFAULT_ROOM);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * Creates a new participant with the username in the specified credentials.
+     *
+     * @param remoteNode  The remote endpoint of the new participant.
+     * @param credentials The credentials of the new participant.
+     * @return The id of the new participant.
+     * @throws MessageException If the username is already taken, or if the server is full.
+     */
     public long createParticipant(ChatClient remoteNode, Credentials credentials) {
-        long participantId = idGenerator.nextLong();
-        Participant newParticipant = new Participant(participantId, credentials.getUsername(),
-                                                     remoteNode, this);
-        participants.put(participantId, newParticipant);
-        return participantId;
+        return createParticipant(remoteNode, credentials, null);
     }
 
     /**
-     * Sends the entire conversation to the specified participant.
+     * Creates a new participant, which replaces a lost session with the username in the specified
+     * credentials. The lost session is identified by its id, which only the client that created
+     * it knows, knowing the username is not enough to replace a session.
      *
-     * @param id The id of the participant that shall receive the conversation.
+     * @param remoteNode  The remote endpoint of the new participant.
+     * @param credentials The credentials of the new participant.
+     * @param previousId  The id of the lost session. If it is still logged in, it is removed.
+     * @return The id of the new participant.
+     * @throws MessageException If the username is taken by another participant than the lost
+     *                          session, or if the server is full.
      */
-    public void sendConvToParticipant(long id) {
-        Participant participant = participants.get(id);
-        for (String entry : conversation.getConversation()) {
-            participant.send(entry);
+    public long resumeParticipant(ChatClient remoteNode, Credentials credentials,
+                                  long previousId) {
+        return createParticipant(remoteNode, credentials, participants.get(previousId));
+    }
+
+    private long createParticipant(ChatClient remoteNode, Credentials credentials,
+                                   Participant lostSession) {
+        long participantId = participants.allocateId();
+        Participant newParticipant;
+        try {
+            newParticipant = new Participant(participantId, credentials.getUsername(), remoteNode,
+                                             this);
+        } catch (RuntimeException failed) {
+            participants.releaseId(participantId);
+            throw failed;
         }
+        participants.put(newParticipant);
+        try {
+            claimUsername(newParticipant, credentials.getUsername(), lostSession);
+        } catch (MessageException taken) {
+            participants.remove(newParticipant);
+            throw taken;
+        }
+        return participantId;
     }
 
     /**
@@ -71,27 +188,281 @@ public class ParticipantManager {
     }
 
     /**
-     * Removes the specified participant from the conversation. No more messages will be sent to
-     * that participant.
+     * Searches for a logged in participant with the specified username.
+     *
+     * @param username The username of the searched participant, in any case.
+     * @return The participant with the specified username, or <code>null</code> if there is no
+     *         such participant.
+     */
+    public Participant findParticipant(String username) {
+        if (username == null) {
+            return null;
+        }
+        Participant participant = participantsByName.get(normalizeUsername(username));
+        return participant != null && isLoggedIn(participant) ? participant : null;
+    }
+
+    /**
+     * Gives the specified participant a new username.
+     *
+     * @param participant The participant changing username.
+     * @param username    The new username.
+     * @throws MessageException If another participant has the new username.
+     */
+    public void changeUsername(Participant participant, String username) {
+        String previous = participant.getUsername();
+        claimUsername(participant, username, null);
+        if (previous != null && !normalizeUsername(previous).equals(normalizeUsername(username))) {
+            participantsByName.remove(normalizeUsername(previous), participant);
+        }
+        participant.changeUsername(username);
+    }
+
+    /**
+     * Sends a direct message from one participant to another. The message is not part of any
+     * room's conversation, and is sent to the recipient only.
+     *
+     * @param sender    The sending participant.
+     * @param recipient The username of the recipient.
+     * @param body      The message body.
+     * @throws MessageException If there is no logged in participant with the recipient's
+     *                          username.
+     */
+    public void sendDirect(Participant sender, String recipient, String body) {
+        Participant receiver = findParticipant(recipient);
+        if (receiver == null) {
+            throw new MessageException("No user named " + recipient + " is logged in.");
+        }
+        receiver.send(ChatMessage.direct(sender.getUsername(), body));
+        metrics.directMessageSent();
+    }
+
+    /**
+     * Removes the specified participant. No more messages will be sent to that participant.
      *
      * @param id The id of the participant that shall be removed.
      */
     public void removeParticipant(long id) {
-        participants.remove(id);
+        Participant participant = participants.get(id);
+        if (participant != null) {
+            unregister(participant);
+        }
     }
 
     /**
-     * Send the specified message to all participants in the conversation.
+     * Removes the specified participant, which has failed to keep up with its messages. The
+     * participant leaves all rooms, and the other participants are informed. The participant is
+     * evicted while a message is placed in its outbound queue, which may happen while a room is
+     * being drained, therefore it leaves the rooms in another thread.
      *
-     * @param msg The message to send.
+     * @param participant The participant that shall be evicted.
      */
-    void broadcast(String msg) {
-        conversation.appendEntry(msg);
-        synchronized (participants) {
-            for (Participant participant : participants.values()) {
-                participant.send(msg);
+    void evictParticipant(Participant participant) {
+        if (unregister(participant)) {
+            metrics.participantEvicted();
+            deliveryExecutor.execute(participant::leaveConversation);
+        }
+    }
+
+    /**
+     * Checks that the specified participant may broadcast a message now. The participant's own
+     * limit is checked first, which means a flooding participant is rejected without touching the
+     * server-wide limit, that is shared by all participants.
+     *
+     * @param participant The participant that wants to broadcast.
+     * @throws FloodControlException If the participant, or all participants together, have
+     *                               exceeded the allowed message rate.
+     */
+    public void admitBroadcast(Participant participant) {
+        if (!participant.tryAcquireBroadcastPermit()) {
+            metrics.broadcastRejected();
+            throw new FloodControlException("Too many messages, slow down.");
+        }
+        if (!globalBroadcastLimiter.tryAcquire()) {
+            metrics.broadcastRejected();
+            throw new FloodControlException("The server is busy, try again later.");
+        }
+    }
+
+    /**
+     * Returns the room with the specified name, the room is created if it does not exist.
+     *
+     * @param name The name of the searched room.
+     * @return The room with the specified name.
+     * @throws MessageException     If the name is not a valid room name.
+     * @throws UncheckedIOException If the room's stored conversation could not be restored.
+     */
+    public Room findOrCreateRoom(String name) {
+        if (name == null || !VALID_ROOM_NAME.matcher(name).matches()) {
+            throw new MessageException("Invalid room name: " + name);
+        }
+        return rooms.computeIfAbsent(name, this::createRoom);
+    }
+
+    /**
+     * Specifies where messages broadcasted by participants at this server are relayed. By
+     * default, they are not relayed at all.
+     *
+     * @param relay Called once for each broadcasted message, in sequence number order within each
+     *              room. Called while the room's conversation is locked, and must not block.
+     */
+    public void setRelay(Consumer<ChatMessage> relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * Broadcasts the specified message, which was broadcasted at another server, to the members
+     * of the same room at this server. The room is created if it does not exist.
+     *
+     * @param relayed The message broadcasted at the other server.
+     * @throws MessageException If the message's room does not have a valid room name.
+     */
+    public void broadcastRelayed(ChatMessage relayed) {
+        findOrCreateRoom(relayed.getRoom()).broadcastRelayed(relayed);
+    }
+
+    /**
+     * @return The names of all existing rooms.
+     */
+    public String[] listRooms() {
+        return rooms.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @return The metrics describing this server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The executor that delivers messages to the remote nodes of all participants.
+     */
+    Executor getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
+    /**
+     * @return The policy deciding how to handle participants that can not keep up.
+     */
+    DeliveryPolicy getDeliveryPolicy() {
+        return deliveryPolicy;
+    }
+
+    /**
+     * @return The limits on how many messages participants may broadcast.
+     */
+    FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * @return The timer that flushes outbound message batches that are not yet full.
+     */
+    ScheduledExecutorService getFlushTimer() {
+        return flushTimer;
+    }
+
+    /**
+     * Removes all participants whose lease has expired. Each of them leaves all rooms, and the
+     * other participants are informed.
+     */
+    private void reapExpiredParticipants() {
+        long now = System.nanoTime();
+        long leaseNanos = TimeUnit.MILLISECONDS.toNanos(deliveryPolicy.getLeaseMillis());
+        List<Participant> expired = new ArrayList<>();
+        participants.forEach(participant -> {
+            if (participant.isLeaseExpired(now, leaseNanos)) {
+                expired.add(participant);
+            }
+        });
+        if (expired.isEmpty()) {
+            return;
+        }
+        deliveryExecutor.execute(() -> {
+            for (Participant participant : expired) {
+                if (unregister(participant)) {
+                    metrics.participantExpired();
+                    participant.leaveConversation();
+                }
+            }
+        });
+    }
+
+    private void claimUsername(Participant claimant, String username, Participant lostSession) {
+        if (username == null) {
+            return;
+        }
+        Participant[] replaced = new Participant[1];
+        participantsByName.compute(normalizeUsername(username), (name, holder) -> {
+            if (holder == null || holder == claimant || !isLoggedIn(holder)) {
+                return claimant;
+            }
+            if (holder != lostSession) {
+                throw new MessageException("The username " + username + " is already taken.");
             }
+            replaced[0] = holder;
+            return claimant;
+        });
+        if (replaced[0] != null && unregister(replaced[0])) {
+            replaced[0].leaveConversation();
+        }
+    }
+
+    private boolean unregister(Participant participant) {
+        if (!participants.remove(participant)) {
+            return false;
+        }
+        String username = participant.getUsername();
+        if (username != null) {
+            participantsByName.remove(normalizeUsername(username), participant);
+        }
+        return true;
+    }
+
+    private boolean isLoggedIn(Participant participant) {
+        return participants.get(participant.getId()) == participant;
+    }
+
+    private static String normalizeUsername(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private long countRetainedEntries() {
+        long count = 0;
+        for (Room room : rooms.values()) {
+            count += room.getRetainedEntries();
         }
+        return count;
+    }
+
+    private long countPendingDeliveries() {
+        long[] count = new long[1];
+        participants.forEach(participant -> count[0] += participant.getPendingCount());
+        return count[0];
+    }
+
+    private long findSlowestDeliveryLatency() {
+        long[] slowest = new long[1];
+        participants.forEach(participant -> slowest[0]
+                = Math.max(slowest[0], participant.getAverageDeliveryLatencyNanos()));
+        return slowest[0];
     }
 
+    private long findMostSkippedMessages() {
+        long[] most = new long[1];
+        participants.forEach(participant -> most[0]
+                = Math.max(most[0], participant.getSkippedCount()));
+        return most[0];
+    }
+
+    private Room createRoom(String name) {
+        try {
+            return new Room(name, conversationFactory.createConversation(name), metrics,
+                            msg -> relay.accept(msg), fanOutPool,
+                            Math.max(deliveryPolicy.getFanOutThreads(), 1));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
 }
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import se.kth.id1212.rmi.common.MessageException;
+
+/**
+ * Holds all participants, in a dense table of slots. A participant id is made of two parts, the
+ * index of the participant's slot in the low bits, and a random session token in the high bits.
+ * Looking up a participant means indexing the table with the slot part, and comparing the id of
+ * the participant found there with the searched id. There is no hashing, and no lock.
+ * <p>
+ * The token is generated by a cryptographically strong random number generator, which means an id
+ * can not be guessed from other ids. A slot is reused when its participant is removed, but the
+ * reused slot gets a new token, so the old id does not find the new participant. There is one
+ * generator for each processor, and a thread uses the generator chosen by its thread id, since a
+ * single generator is synchronized, and would be contended by all logins.
+ * <p>
+ * The table is divided into chunks, which are allocated when first needed. Free slots form a
+ * lock-free stack, linked through an int array in each chunk.
+ */
+class ParticipantTable {
+    private static final int SLOT_BITS = 22;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+    private static final long SLOT_MASK = MAX_SLOTS - 1;
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int NO_SLOT = -1;
+    private static final long SLOT_OF_HEAD = 0xFFFF_FFFFL;
+    private final AtomicReferenceArray<Chunk> chunks
+            = new AtomicReferenceArray<>(MAX_SLOTS / CHUNK_SIZE);
+    private final SecureRandom[] tokenGenerators
+            = new SecureRandom[Runtime.getRuntime().availableProcessors()];
+    private final AtomicLong freeSlotsHead = new AtomicLong(headOf(0, NO_SLOT));
+    private final AtomicInteger nextUnusedSlot = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates an empty table.
+     */
+    ParticipantTable() {
+        for (int i = 0; i < tokenGenerators.length; i++) {
+            tokenGenerators[i] = createTokenGenerator();
+        }
+    }
+
+    /**
+     * Reserves a slot, and creates an id for the participant that will be stored there. The slot
+     * must be released with <code>releaseId</code> if the participant is never stored.
+     *
+     * @return The new participant id.
+     * @throws MessageException If all slots are in use.
+     */
+    long allocateId() {
+        int slot = popFreeSlot();
+        if (slot == NO_SLOT) {
+            slot = nextUnusedSlot.getAndIncrement();
+        }
+        if (slot >= MAX_SLOTS) {
+            nextUnusedSlot.decrementAndGet();
+            throw new MessageException("The server is full.");
+        }
+        SecureRandom tokenGenerator = tokenGenerators[
+                (int) (Thread.currentThread().threadId() % tokenGenerators.length)];
+        long token = tokenGenerator.nextLong() << SLOT_BITS;
+        return token | slot;
+    }
+
+    /**
+     * Releases the slot reserved for the specified id, which was never used to store a
+     * participant.
+     *
+     * @param id An id created by <code>allocateId</code>.
+     */
+    void releaseId(long id) {
+        pushFreeSlot(slotOf(id));
+    }
+
+    /**
+     * Stores the specified participant in the slot reserved for its id.
+     *
+     * @param participant The participant to store. Its id must have been created by
+     *                    <code>allocateId</code>.
+     */
+    void put(Participant participant) {
+        int slot = slotOf(participant.getId());
+        chunkFor(slot).participants.set(slot & CHUNK_MASK, participant);
+        size.incrementAndGet();
+    }
+
+    /**
+     * Searches for the participant with the specified id.
+     *
+     * @param id The id of the searched participant.
+     * @return The participant with the specified id, or <code>null</code> if there is no such
+     *         participant.
+     */
+    Participant get(long id) {
+        int slot = slotOf(id);
+        Chunk chunk = chunks.get(slot >>> CHUNK_BITS);
+        if (chunk == null) {
+            return null;
+        }
+        Participant participant = chunk.participants.get(slot & CHUNK_MASK);
+        return participant != null && participant.getId() == id ? participant : null;
+    }
+
+    /**
+     * Removes the specified participant, if it is stored in this table.
+     *
+     * @param participant The participant to remove.
+     * @return <code>true</code> if the participant was removed, <code>false</code> if it was not
+     *         stored in this table.
+     */
+    boolean remove(Participant participant) {
+        int slot = slotOf(participant.getId());
+        Chunk chunk = chunks.get(slot >>> CHUNK_BITS);
+        if (chunk == null
+            || !chunk.participants.compareAndSet(slot & CHUNK_MASK, participant, null)) {
+            return false;
+        }
+        size.decrementAndGet();
+        pushFreeSlot(slot);
+        return true;
+    }
+
+    /**
+     * @return The number of participants in this table.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Calls the specified action once for each participant in this table. Participants added or
+     * removed during the iteration may or may not be included.
+     *
+     * @param action Called for each participant.
+     */
+    void forEach(Consumer<Participant> action) {
+        int end = Math.min(nextUnusedSlot.get(), MAX_SLOTS);
+        for (int slot = 0; slot < end; slot++) {
+            Chunk chunk = chunks.get(slot >>> CHUNK_BITS);
+            if (chunk == null) {
+                slot |= CHUNK_MASK;
+                continue;
+            }
+            Participant participant = chunk.participants.get(slot & CHUNK_MASK);
+            if (participant != null) {
+                action.accept(participant);
+            }
+        }
+    }
+
+    private static int slotOf(long id) {
+        return (int) (id & SLOT_MASK);
+    }
+
+    /**
+     * The head of the free slot stack holds the top slot in the low bits, and a version in the
+     * high bits. The version changes with each push and pop, which means a thread that read an
+     * old head can not pop a slot that was popped and pushed again meanwhile.
+     */
+    private static long headOf(long version, int slot) {
+        return version << Integer.SIZE | (slot & SLOT_OF_HEAD);
+    }
+
+    private int popFreeSlot() {
+        while (true) {
+            long head = freeSlotsHead.get();
+            int slot = (int) head;
+            if (slot == NO_SLOT) {
+                return NO_SLOT;
+            }
+            int next = chunks.get(slot >>> CHUNK_BITS).nextFree[slot & CHUNK_MASK];
+            if (freeSlotsHead.compareAndSet(head, headOf((head >>> Integer.SIZE) + 1, next))) {
+                return slot;
+            }
+        }
+    }
+
+    private void pushFreeSlot(int slot) {
+        Chunk chunk = chunkFor(slot);
+        while (true) {
+            long head = freeSlotsHead.get();
+            chunk.nextFree[slot & CHUNK_MASK] = (int) head;
+            if (freeSlotsHead.compareAndSet(head, headOf((head >>> Integer.SIZE) + 1, slot))) {
+                return;
+            }
+        }
+    }
+
+    private Chunk chunkFor(int slot) {
+        int chunkIndex = slot >>> CHUNK_BITS;
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new Chunk());
+            chunk = chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    private static SecureRandom createTokenGenerator() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException noDrbg) {
+            return new SecureRandom();
+        }
+    }
+
+    private static class Chunk {
+        private final AtomicReferenceArray<Participant> participants
+                = new AtomicReferenceArray<>(CHUNK_SIZE);
+        private final int[] nextFree = new int[CHUNK_SIZE];
+    }
+}
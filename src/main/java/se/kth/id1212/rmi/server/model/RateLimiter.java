@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, which allows a sustained rate of permits, and bursts up to the bucket size.
+ * <p>
+ * The bucket is stored as one single value, the time at which it will be full again, so that
+ * acquiring a permit is one compare-and-set, without any lock. A permit is granted if the bucket
+ * holds at least one token, which is the case if the time until the bucket is full is at most the
+ * time it takes to refill the whole bucket minus one token.
+ */
+class RateLimiter {
+    private final long nanosPerPermit;
+    private final long maxDebtNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * Creates a new, full, bucket.
+     *
+     * @param permitsPerSecond The sustained rate. If this is zero or negative, all permits are
+     *                         granted.
+     * @param burst            The bucket size, which is the number of permits that can be granted
+     *                         at once.
+     */
+    RateLimiter(double permitsPerSecond, int burst) {
+        this.nanosPerPermit = permitsPerSecond <= 0 ? 0
+                              : (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.maxDebtNanos = nanosPerPermit * (Math.max(burst, 1) - 1);
+    }
+
+    /**
+     * Grants a permit if the bucket holds a token. This method never blocks.
+     *
+     * @return <code>true</code> if the permit was granted, <code>false</code> if the rate is
+     *         exceeded.
+     */
+    boolean tryAcquire() {
+        if (nanosPerPermit == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long start = current - now > 0 ? current : now;
+            if (start - now > maxDebtNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, start + nanosPerPermit)) {
+                return true;
+            }
+        }
+    }
+}
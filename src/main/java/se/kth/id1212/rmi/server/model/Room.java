@@ -0,0 +1,469 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.HistoryPage;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.server.metrics.ServerMetrics;
+
+/**
+ * A chat room, with its own members and its own conversation. A message broadcasted in a room is
+ * only sent to the members of that room, and rooms do not share any locks.
+ * <p>
+ * Members are kept in concurrent maps, lookups never block, and broadcasts iterate a weakly
+ * consistent view of the maps without locking them.
+ * <p>
+ * The order of the messages in a room is decided once, when a message is appended to the room's
+ * conversation. In the same step, the message is published in a ring buffer, at the slot given by
+ * its sequence number. The members are divided into stripes, by participant id, and each stripe
+ * has a cursor, which is the sequence number of the next message to place in the outbound queues
+ * of the stripe's members. A broadcasting thread drains each stripe, that is, places all published
+ * messages from the stripe's cursor and onwards in the outbound queues, and advances the cursor.
+ * Only one thread at a time drains a stripe, a thread that finds the stripe already being drained
+ * leaves its message to the draining thread. This means every member receives the messages in the
+ * same order as they appear in the conversation, even when several participants broadcast at the
+ * same time, while broadcasts to different stripes still run in parallel. In a large room, the
+ * stripes are drained by different threads, one of which is the broadcasting thread, and the
+ * broadcast returns when all stripes are done.
+ * <p>
+ * Before a message is appended, the broadcasting thread reserves a slot in the ring buffer, which
+ * means waiting, without holding any lock, until all stripes have drained the message published
+ * <code>RING_SIZE</code> slots earlier. Publishing a message under the conversation's lock
+ * therefore never blocks. A joining participant is sent the entries before its stripe's cursor
+ * from the conversation, and all following messages from the ring buffer, which means it neither
+ * misses nor repeats messages. The messages drained while the participant is sent the entries are
+ * held back, up to the capacity of its outbound queue, and the delivery policy decides which
+ * messages are skipped if there are more.
+ */
+public class Room {
+    private static final int JOIN_REPLAY_SIZE = 20;
+    private static final int MAX_HISTORY_PAGE_SIZE = 100;
+    private static final int MAX_RESUME_SIZE = 1000;
+    private static final int PARALLEL_FAN_OUT_THRESHOLD = 1000;
+    private static final int RING_SIZE = 1024;
+    private final String name;
+    private final Conversation conversation;
+    private final ServerMetrics metrics;
+    private final Consumer<ChatMessage> relay;
+    private final AtomicReferenceArray<ChatMessage> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private final AtomicLong reservedUpTo;
+    private final List<Stripe> stripes = new ArrayList<>();
+    private final Executor fanOutPool;
+
+    /**
+     * Creates a new room, without members.
+     *
+     * @param name         The name of the room.
+     * @param conversation The room's conversation. Entries must only be appended by this room.
+     * @param metrics      Records the fan-out time of broadcasts.
+     * @param relay        Relays messages broadcasted in this room to other servers.
+     * @param fanOutPool   Executes the fan-out of broadcasts in large rooms, or
+     *                     <code>null</code> if broadcasts are never fanned out in parallel.
+     * @param stripeCount  The number of stripes the members are divided into.
+     */
+    Room(String name, Conversation conversation, ServerMetrics metrics,
+         Consumer<ChatMessage> relay, Executor fanOutPool, int stripeCount) {
+        this.name = name;
+        this.conversation = conversation;
+        this.metrics = metrics;
+        this.relay = relay;
+        this.fanOutPool = fanOutPool;
+        long nextIndex = conversation.getNextIndex();
+        this.reservedUpTo = new AtomicLong(nextIndex);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes.add(new Stripe(nextIndex));
+        }
+    }
+
+    /**
+     * @return The name of this room.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of participants currently in this room.
+     */
+    public int getMemberCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            count += stripe.members.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of entries retained in this room's conversation.
+     */
+    public long getRetainedEntries() {
+        return conversation.getNextIndex() - conversation.getFirstIndex();
+    }
+
+    /**
+     * Makes the specified participant a member of this room, and sends entries of the room's
+     * conversation to the participant. A participant that has not seen any entries is sent the
+     * most recent entries, a participant that resumes after a lost connection is sent the entries
+     * it has not seen, but at most <code>MAX_RESUME_SIZE</code> entries. Older entries can be
+     * fetched with <code>getHistory</code>. Messages broadcasted while the entries are sent are
+     * held back, and sent after the entries. If more messages are held back than fit in the
+     * participant's outbound queue, the delivery policy decides which are skipped.
+     *
+     * @param participant The joining participant.
+     * @param lastSeen    The sequence number of the last entry the participant has seen, or
+     *                    <code>ChatMessage.NO_SEQUENCE</code> if it has not seen any entry.
+     */
+    void join(Participant participant, long lastSeen) {
+        Stripe stripe = stripeOf(participant);
+        Member member = new Member(participant);
+        stripe.acquire();
+        long joinedAt;
+        try {
+            joinedAt = stripe.cursor.get();
+            stripe.members.put(participant.getId(), member);
+        } finally {
+            releaseAndDrain(stripe);
+        }
+        try {
+            long replayStart = lastSeen == ChatMessage.NO_SEQUENCE
+                               ? joinedAt - JOIN_REPLAY_SIZE
+                               : Math.max(Math.min(lastSeen + 1, joinedAt),
+                                          joinedAt - MAX_RESUME_SIZE);
+            replayStart = Math.max(replayStart, conversation.getFirstIndex());
+            member.replayStart = replayStart;
+            int replaySize = (int) Math.max(joinedAt - replayStart, 0);
+            List<ChatMessage> replay = new ArrayList<>(replaySize);
+            conversation.readEntries(replayStart, replaySize, (index, timestamp, entry) -> {
+                if (index < joinedAt) {
+                    replay.add(new ChatMessage(name, index, timestamp, null, entry));
+                }
+            });
+            participant.sendAll(replay.toArray(new ChatMessage[0]));
+        } finally {
+            stripe.acquire();
+            try {
+                member.sendHeldBack();
+            } finally {
+                releaseAndDrain(stripe);
+            }
+        }
+    }
+
+    /**
+     * Removes the specified participant from this room. No more messages from this room will be
+     * sent to that participant.
+     *
+     * @param participant The leaving participant.
+     */
+    void leave(Participant participant) {
+        stripeOf(participant).members.remove(participant.getId());
+    }
+
+    /**
+     * Returns entries from the room's conversation, ending immediately before the specified
+     * cursor.
+     *
+     * @param participant The participant fetching history.
+     * @param before      The returned page ends with the entry immediately before this index, or
+     *                    immediately before the entries sent when the participant joined if this
+     *                    is <code>HistoryPage.BEFORE_LOGIN_REPLAY</code>.
+     * @param maxEntries  The maximum number of entries on the returned page.
+     * @return The requested page of history.
+     */
+    HistoryPage getHistory(Participant participant, long before, int maxEntries) {
+        if (before == HistoryPage.BEFORE_LOGIN_REPLAY) {
+            Member member = stripeOf(participant).members.get(participant.getId());
+            before = member == null || member.replayStart == ChatMessage.NO_SEQUENCE
+                     ? conversation.getNextIndex() : member.replayStart;
+        }
+        int pageSize = Math.min(maxEntries, MAX_HISTORY_PAGE_SIZE);
+        long oldestRetained = conversation.getFirstIndex();
+        long firstIndex = Math.max(before - pageSize, oldestRetained);
+        int entryCount = (int) Math.max(before - firstIndex, 0);
+        return new HistoryPage(conversation.getEntries(firstIndex, entryCount), firstIndex,
+                               firstIndex > oldestRetained);
+    }
+
+    /**
+     * Searches the room's conversation for entries containing all the specified words, and
+     * written by the specified sender. The most recent matching entries are returned first.
+     *
+     * @param keywords   The words to search for.
+     * @param sender     The username of the sender, or <code>null</code> to search entries by
+     *                   all senders.
+     * @param before     The returned page ends with the last matching entry before this index,
+     *                   or with the last matching entry in the conversation if this is
+     *                   <code>HistoryPage.AFTER_NEWEST</code>.
+     * @param maxEntries The maximum number of entries on the returned page.
+     * @return The requested page of matching entries. The cursor of the page is the index of its
+     *         first entry.
+     * @throws MessageException If neither words nor a sender are specified.
+     */
+    HistoryPage search(String keywords, String sender, long before, int maxEntries) {
+        if ((keywords == null || SearchIndex.tokenize(keywords, 0).isEmpty()) && sender == null) {
+            throw new MessageException("Specify words or a sender to search for.");
+        }
+        int pageSize = Math.min(maxEntries, MAX_HISTORY_PAGE_SIZE);
+        List<String> found = new ArrayList<>(Math.max(pageSize, 0));
+        long[] firstIndex = {before};
+        Conversation.EntryHandler collector = (index, timestamp, entry) -> {
+            if (found.isEmpty()) {
+                firstIndex[0] = index;
+            }
+            found.add(entry);
+        };
+        boolean hasMore = conversation.search(keywords == null ? "" : keywords, sender, before,
+                                              pageSize, collector);
+        return new HistoryPage(found.toArray(new String[0]), firstIndex[0], hasMore);
+    }
+
+    /**
+     * Send the specified message to all members of this room, and relay it to other servers. The
+     * message is only placed in the outbound queue of each member, this method does not wait for
+     * it to be delivered. All members are sent the same message instance, which means it is
+     * encoded only once. The message is handed to the relay while the conversation is locked,
+     * which means messages are relayed in sequence number order.
+     *
+     * @param sender The username of the sender.
+     * @param body   The message body.
+     */
+    void broadcast(String sender, String body) {
+        broadcast(sender, body, System.currentTimeMillis(), relay);
+    }
+
+    /**
+     * Send the specified message, which was broadcasted at another server, to all members of this
+     * room. The message is appended to this room's conversation, where it is given a new sequence
+     * number, and it is not relayed again.
+     *
+     * @param relayed The message broadcasted at the other server.
+     */
+    void broadcastRelayed(ChatMessage relayed) {
+        broadcast(relayed.getSender(), relayed.getBody(), relayed.getTimestamp(), msg -> {
+        });
+    }
+
+    private void broadcast(String sender, String body, long timestamp,
+                           Consumer<ChatMessage> relay) {
+        reserveSlot();
+        ChatMessage[] published = new ChatMessage[1];
+        try {
+            conversation.appendEntry(sender + ChatMessage.SENDER_DELIMITER + body, timestamp,
+                                     (index, appendedAt, entry) -> {
+                published[0] = new ChatMessage(name, index, appendedAt, sender, body);
+                publish(published[0]);
+                relay.accept(published[0]);
+            });
+        } finally {
+            if (published[0] == null) {
+                reservedUpTo.decrementAndGet();
+            } else {
+                long startTime = System.nanoTime();
+                if (fanOutPool == null || getMemberCount() < PARALLEL_FAN_OUT_THRESHOLD) {
+                    for (Stripe stripe : stripes) {
+                        drain(stripe);
+                    }
+                } else {
+                    fanOutInParallel();
+                }
+                metrics.broadcastCompleted(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    /**
+     * Waits until the ring buffer has room for one more message, and reserves that room. The
+     * number of reservations bounds the sequence number of the next message, since only this room
+     * appends to its conversation. While waiting, this thread helps draining the stripes.
+     */
+    private void reserveSlot() {
+        while (true) {
+            long reserved = reservedUpTo.get();
+            if (reserved - minCursor() < RING_SIZE) {
+                if (reservedUpTo.compareAndSet(reserved, reserved + 1)) {
+                    return;
+                }
+            } else {
+                for (Stripe stripe : stripes) {
+                    drain(stripe);
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Places the specified message in the ring buffer. Called while the conversation is locked,
+     * which means messages are published in sequence number order. The slot is free, since it was
+     * reserved before the message was appended.
+     */
+    private void publish(ChatMessage msg) {
+        ring.set(slotOf(msg.getSequence()), msg);
+    }
+
+    private void fanOutInParallel() {
+        CompletableFuture<?>[] others = new CompletableFuture<?>[stripes.size() - 1];
+        for (int i = 1; i < stripes.size(); i++) {
+            Stripe stripe = stripes.get(i);
+            others[i - 1] = CompletableFuture.runAsync(() -> drain(stripe), fanOutPool);
+        }
+        drain(stripes.get(0));
+        CompletableFuture.allOf(others).join();
+    }
+
+    /**
+     * Sends all published messages from the stripe's cursor and onwards to the stripe's members.
+     * Returns immediately if another thread is draining the stripe, since that thread checks for
+     * newly published messages before it stops.
+     */
+    private void drain(Stripe stripe) {
+        while (stripe.draining.compareAndSet(false, true)) {
+            try {
+                long cursor = stripe.cursor.get();
+                for (ChatMessage msg = publishedAt(cursor); msg != null;
+                     msg = publishedAt(cursor)) {
+                    for (Member member : stripe.members.values()) {
+                        member.send(msg);
+                    }
+                    stripe.cursor.set(++cursor);
+                }
+            } finally {
+                stripe.release();
+            }
+            if (publishedAt(stripe.cursor.get()) == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases the specified stripe, which was acquired by a thread that does not drain it. The
+     * stripe is drained, since a broadcasting thread that found it acquired left its message to
+     * this thread.
+     */
+    private void releaseAndDrain(Stripe stripe) {
+        stripe.release();
+        drain(stripe);
+    }
+
+    private ChatMessage publishedAt(long sequence) {
+        ChatMessage msg = ring.get(slotOf(sequence));
+        return msg != null && msg.getSequence() == sequence ? msg : null;
+    }
+
+    private long minCursor() {
+        long min = Long.MAX_VALUE;
+        for (Stripe stripe : stripes) {
+            min = Math.min(min, stripe.cursor.get());
+        }
+        return min;
+    }
+
+    private static int slotOf(long sequence) {
+        return (int) (sequence & (RING_SIZE - 1));
+    }
+
+    private Stripe stripeOf(Participant participant) {
+        return stripes.get((int) Long.remainderUnsigned(participant.getId(), stripes.size()));
+    }
+
+    private static class Stripe {
+        private final Map<Long, Member> members = new ConcurrentHashMap<>();
+        private final AtomicLong cursor;
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Stripe(long cursor) {
+            this.cursor = new AtomicLong(cursor);
+        }
+
+        void acquire() {
+            while (!draining.compareAndSet(false, true)) {
+                Thread.onSpinWait();
+            }
+        }
+
+        void release() {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * A member of the room. Messages are only sent to a member while its stripe is drained, and
+     * while the member is joining, they are held back until the replayed entries have been sent.
+     * At most as many messages as fit in the member's outbound queue are held back.
+     */
+    private class Member {
+        private final Participant participant;
+        private volatile long replayStart = ChatMessage.NO_SEQUENCE;
+        private Deque<ChatMessage> heldBack = new ArrayDeque<>();
+        private long skippedWhileJoining;
+
+        Member(Participant participant) {
+            this.participant = participant;
+        }
+
+        void send(ChatMessage msg) {
+            if (heldBack == null) {
+                participant.send(msg);
+                return;
+            }
+            DeliveryPolicy policy = participant.getDeliveryPolicy();
+            if (heldBack.size() >= policy.getQueueCapacity()) {
+                skippedWhileJoining++;
+                metrics.messageSkipped();
+                if (policy.getOverflow() != DeliveryPolicy.Overflow.DROP_OLDEST) {
+                    return;
+                }
+                heldBack.removeFirst();
+            }
+            heldBack.addLast(msg);
+        }
+
+        void sendHeldBack() {
+            for (ChatMessage msg : heldBack) {
+                participant.send(msg);
+            }
+            if (skippedWhileJoining > 0
+                && participant.getDeliveryPolicy().getOverflow()
+                   == DeliveryPolicy.Overflow.SUMMARIZE) {
+                participant.send(ChatMessage.notice("[" + skippedWhileJoining
+                                                    + " messages were skipped]"));
+            }
+            heldBack = null;
+        }
+    }
+}
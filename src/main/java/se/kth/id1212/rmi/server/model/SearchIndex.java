@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import se.kth.id1212.rmi.common.ChatMessage;
+
+/**
+ * An inverted index over the entries of one conversation, mapping each word, and each sender, to
+ * the indexes of the entries where it occurs. The index is not thread safe, it is only used while
+ * its conversation is locked.
+ * <p>
+ * The indexes of each word are kept in ascending order in an array, since entries are added in the
+ * order they are appended to the conversation. Evicted entries are not removed one by one, that
+ * would mean splitting them in words again. Instead, searches ignore indexes below the first
+ * retained index, and the arrays are trimmed in a sweep over all words, once as many entries as
+ * there are words have been evicted since the previous sweep.
+ * <p>
+ * Searching intersects the arrays backwards from the newest entry, by searching each array in
+ * turn for the highest index not above the current candidate. Each array keeps a cursor during
+ * the search, and is searched by galloping backwards from the cursor. This means a search skips
+ * past entries that occur in only some of the arrays, without visiting them.
+ */
+class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MIN_SWEEP_INTERVAL = 1024;
+    private final Map<String, Postings> words = new HashMap<>();
+    private final Map<String, Postings> senders = new HashMap<>();
+    private long firstRetained;
+    private long evictedSinceSweep;
+
+    /**
+     * Adds the specified entry to the index.
+     *
+     * @param index The entry's index in the conversation.
+     * @param entry The entry, which starts with the sender's username if it has a sender.
+     */
+    void add(long index, String entry) {
+        int bodyStart = entry.indexOf(ChatMessage.SENDER_DELIMITER);
+        if (bodyStart > 0) {
+            senders.computeIfAbsent(normalizeSender(entry.substring(0, bodyStart)),
+                                    sender -> new Postings()).add(index);
+        }
+        for (String word : tokenize(entry, Math.max(bodyStart, 0))) {
+            words.computeIfAbsent(word, newWord -> new Postings()).add(index);
+        }
+    }
+
+    /**
+     * Removes all entries before the specified index from the index.
+     *
+     * @param firstIndex The index of the oldest entry that is still retained.
+     */
+    void evictBefore(long firstIndex) {
+        evictedSinceSweep += firstIndex - firstRetained;
+        firstRetained = firstIndex;
+        if (evictedSinceSweep >= Math.max(words.size() + senders.size(), MIN_SWEEP_INTERVAL)) {
+            sweep(words);
+            sweep(senders);
+            evictedSinceSweep = 0;
+        }
+    }
+
+    /**
+     * Finds the most recent entries containing all the specified words, and written by the
+     * specified sender.
+     *
+     * @param keywords   Words that must occur in all found entries, in lower case.
+     * @param sender     The sender of all found entries, or <code>null</code> if any sender is
+     *                   accepted.
+     * @param before     Only entries with a lower index than this are found.
+     * @param maxMatches The maximum number of found entries.
+     * @return The indexes of the found entries, newest entry first.
+     */
+    long[] search(List<String> keywords, String sender, long before, int maxMatches) {
+        List<Postings> required = new ArrayList<>();
+        if (sender != null) {
+            required.add(senders.get(normalizeSender(sender)));
+        }
+        for (String keyword : keywords) {
+            required.add(words.get(keyword));
+        }
+        if (required.isEmpty() || required.contains(null)) {
+            return new long[0];
+        }
+        required.sort((first, second) -> Integer.compare(first.size(), second.size()));
+        int[] cursors = new int[required.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = required.get(i).tail - 1;
+        }
+        long[] matches = new long[Math.max(Math.min(maxMatches, required.get(0).size()), 0)];
+        int matchCount = 0;
+        long candidate = before - 1;
+        int agreeing = 0;
+        int next = 0;
+        while (matchCount < matches.length && candidate >= firstRetained) {
+            Postings postings = required.get(next);
+            int pos = postings.positionAtOrBefore(candidate, cursors[next]);
+            cursors[next] = pos;
+            if (pos < postings.head || postings.indexes[pos] < firstRetained) {
+                break;
+            }
+            if (postings.indexes[pos] == candidate) {
+                agreeing++;
+            } else {
+                candidate = postings.indexes[pos];
+                agreeing = 1;
+            }
+            if (agreeing == required.size()) {
+                matches[matchCount++] = candidate--;
+                agreeing = 0;
+            }
+            next = (next + 1) % required.size();
+        }
+        return Arrays.copyOf(matches, matchCount);
+    }
+
+    /**
+     * Splits the specified text in words, which are sequences of letters and digits. Each word is
+     * returned once, in lower case. Words longer than <code>MAX_TERM_LENGTH</code> are not
+     * returned.
+     *
+     * @param text  The text to split.
+     * @param start The position in the text where splitting starts.
+     * @return The distinct words of the text.
+     */
+    static List<String> tokenize(String text, int start) {
+        List<String> found = new ArrayList<>();
+        int length = text.length();
+        int pos = start;
+        while (pos < length) {
+            while (pos < length && !Character.isLetterOrDigit(text.charAt(pos))) {
+                pos++;
+            }
+            int wordStart = pos;
+            while (pos < length && Character.isLetterOrDigit(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos > wordStart && pos - wordStart <= MAX_TERM_LENGTH) {
+                String word = text.substring(wordStart, pos).toLowerCase(Locale.ROOT);
+                if (!found.contains(word)) {
+                    found.add(word);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static String normalizeSender(String sender) {
+        return sender.toLowerCase(Locale.ROOT);
+    }
+
+    private void sweep(Map<String, Postings> postingsByTerm) {
+        Iterator<Postings> iter = postingsByTerm.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().trimBefore(firstRetained)) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static class Postings {
+        private static final int INITIAL_CAPACITY = 4;
+        private static final int SHRINK_FACTOR = 4;
+        private long[] indexes = new long[INITIAL_CAPACITY];
+        private int head;
+        private int tail;
+
+        int size() {
+            return tail - head;
+        }
+
+        void add(long index) {
+            if (tail == indexes.length) {
+                if (head >= indexes.length / 2) {
+                    System.arraycopy(indexes, head, indexes, 0, size());
+                } else {
+                    indexes = Arrays.copyOfRange(indexes, head, 2 * indexes.length);
+                }
+                tail -= head;
+                head = 0;
+            }
+            indexes[tail++] = index;
+        }
+
+        /**
+         * Removes all indexes below the specified index.
+         *
+         * @return <code>true</code> if no index remains.
+         */
+        boolean trimBefore(long firstIndex) {
+            int pos = Arrays.binarySearch(indexes, head, tail, firstIndex);
+            head = pos >= 0 ? pos : -pos - 1;
+            if (size() > 0 && size() < indexes.length / SHRINK_FACTOR) {
+                indexes = Arrays.copyOfRange(indexes, head, head + 2 * size());
+                tail -= head;
+                head = 0;
+            }
+            return size() == 0;
+        }
+
+        /**
+         * Finds the highest position holding an index that is not above the specified index, by
+         * galloping backwards from the specified position.
+         *
+         * @param index The searched index.
+         * @param from  No position above this holds an index that is not above the searched
+         *              index.
+         * @return The found position, or <code>head - 1</code> if there is no such position.
+         */
+        int positionAtOrBefore(long index, int from) {
+            if (from < head || indexes[from] <= index) {
+                return from;
+            }
+            int above = from;
+            int step = 1;
+            int low = above - step;
+            while (low >= head && indexes[low] > index) {
+                above = low;
+                step <<= 1;
+                low = above - step;
+            }
+            int pos = Arrays.binarySearch(indexes, Math.max(low, head), above, index);
+            return pos >= 0 ? pos : -pos - 2;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import se.kth.id1212.rmi.common.ChatClient;
+import se.kth.id1212.rmi.common.ChatMessage;
+import se.kth.id1212.rmi.common.ChatServer;
+import se.kth.id1212.rmi.common.Credentials;
+import se.kth.id1212.rmi.common.FrameReader;
+import se.kth.id1212.rmi.common.FrameWriter;
+import se.kth.id1212.rmi.common.HistoryPage;
+import se.kth.id1212.rmi.common.MessageException;
+import se.kth.id1212.rmi.common.Protocol;
+
+/**
+ * One client connected to the socket server. The connection is also the client's remote node, the
+ * chat server delivers messages by calling <code>recvMessages</code>, which places a frame in the
+ * outbound queue of this connection.
+ * <p>
+ * Frames are read and written by the selector thread. Received requests are executed one at a
+ * time, in the order they were received, by a virtual thread owned by this connection. When
+ * <code>MAX_QUEUED_REQUESTS</code> requests are waiting to be executed, or the client has not read
+ * <code>MAX_OUTBOUND_BYTES</code> of responses and messages, the selector stops reading from the
+ * socket until the connection has caught up. A client that sends requests faster than they are
+ * executed, or without reading the responses, is thereby slowed down by TCP flow control, instead
+ * of filling the server's memory.
+ */
+class Connection implements ChatClient {
+    private static final int INITIAL_READ_BUFFER_SIZE = 8192;
+    private static final long MAX_OUTBOUND_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private static final int MESSAGES_HEADER_LENGTH = 1 + 2 * Integer.BYTES;
+    private static final byte[] CLOSED = new byte[0];
+    private static final String OPERATION_FAILED = "Operation failed";
+    private final ChatServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final BlockingQueue<byte[]> requests = new LinkedBlockingQueue<>();
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+    private final Set<Long> participantIds = ConcurrentHashMap.newKeySet();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private volatile boolean closed;
+
+    /**
+     * Creates a new connection, and starts executing its requests.
+     *
+     * @param server  All requests are executed by this chat server.
+     * @param channel The client's socket.
+     * @param key     The channel's selection key.
+     */
+    Connection(ChatServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        Thread.ofVirtual().name("connection-" + channel.socket().getPort()).start(this::execute);
+    }
+
+    @Override
+    public void recvMsg(String msg) throws RemoteException {
+        recvMessages(new ChatMessage[]{ChatMessage.notice(msg)});
+    }
+
+    /**
+     * Places the specified messages in the outbound queue. Each message is sent in the encoded form
+     * it already has, it is not encoded again for this client. The messages are split into as many
+     * frames as needed to keep each frame within the protocol's length limit.
+     *
+     * @param msgs The messages to send.
+     * @throws RemoteException If the connection is closed, or if the client does not read the
+     *                         frames already in the outbound queue.
+     */
+    @Override
+    public void recvMessages(ChatMessage[] msgs) throws RemoteException {
+        if (closed) {
+            throw new RemoteException("Connection is closed.");
+        }
+        if (outboundBytes.get() > MAX_OUTBOUND_BYTES) {
+            throw new RemoteException("Client is not reading its messages.");
+        }
+        int first = 0;
+        while (first < msgs.length) {
+            int length = MESSAGES_HEADER_LENGTH + Integer.BYTES + msgs[first].toBytes().length;
+            int end = first + 1;
+            while (end < msgs.length) {
+                int msgLength = Integer.BYTES + msgs[end].toBytes().length;
+                if (length + msgLength > Protocol.MAX_FRAME_LENGTH) {
+                    break;
+                }
+                length += msgLength;
+                end++;
+            }
+            FrameWriter frame = new FrameWriter(Protocol.MESSAGES, 0).putInt(end - first);
+            for (int i = first; i < end; i++) {
+                frame.putBytes(msgs[i].toBytes());
+            }
+            enqueue(frame);
+            first = end;
+        }
+    }
+
+    /**
+     * Reads all available bytes from the channel, and hands each complete frame to the request
+     * executing thread. Reading is paused if the connection is backed up, at most the frames in
+     * one read buffer are queued above the request limit. Called only by the selector thread.
+     *
+     * @throws IOException If the channel could not be read, or if the client sent an invalid
+     *                     frame.
+     */
+    void readFrames() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new IOException("Client closed the connection.");
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= Integer.BYTES) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (readBuffer.remaining() < Integer.BYTES + length) {
+                break;
+            }
+            byte[] frame = new byte[length];
+            readBuffer.position(readBuffer.position() + Integer.BYTES);
+            readBuffer.get(frame);
+            requests.add(frame);
+        }
+        readBuffer.compact();
+        if (isBackedUp()) {
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            readPaused.set(true);
+            if (!isBackedUp()) {
+                resumeReading();
+            }
+        }
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(
+                    readBuffer.capacity() * 2, Integer.BYTES + Protocol.MAX_FRAME_LENGTH));
+            readBuffer.flip();
+            readBuffer = larger.put(readBuffer);
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the channel accepts. Called only by the selector thread.
+     *
+     * @throws IOException If the channel could not be written.
+     */
+    void writeFrames() throws IOException {
+        ByteBuffer frame;
+        while ((frame = outbound.peek()) != null) {
+            int written = channel.write(frame);
+            outboundBytes.addAndGet(-written);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        if (!outbound.isEmpty()) {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        }
+        if (readPaused.get() && !isBackedUp()) {
+            resumeReading();
+        }
+    }
+
+    /**
+     * Closes the connection. All participants that logged in through this connection leave the
+     * conversation.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        outbound.clear();
+        requests.add(CLOSED);
+    }
+
+    private void execute() {
+        try {
+            byte[] request;
+            while ((request = requests.take()) != CLOSED) {
+                if (readPaused.get() && !isBackedUp()) {
+                    resumeReading();
+                }
+                executeRequest(request);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (long participantId : participantIds) {
+            try {
+                server.leaveConversation(participantId);
+            } catch (RemoteException | RuntimeException alreadyGone) {
+            }
+        }
+    }
+
+    private void executeRequest(byte[] request) {
+        int requestId = 0;
+        try {
+            FrameReader req = new FrameReader(request);
+            requestId = req.getRequestId();
+            enqueue(execute(req, new FrameWriter(Protocol.RESULT, requestId)));
+        } catch (MessageException failed) {
+            enqueue(new FrameWriter(Protocol.ERROR, requestId).putString(failed.getMessage()));
+        } catch (RemoteException | RuntimeException failed) {
+            enqueue(new FrameWriter(Protocol.ERROR, requestId).putString(OPERATION_FAILED));
+        } catch (IOException malformedRequest) {
+            close();
+        }
+    }
+
+    private FrameWriter execute(FrameReader req, FrameWriter result) throws IOException {
+        switch (req.getType()) {
+            case Protocol.LOGIN:
+                long participantId = server.login(this, new Credentials(req.getString(),
+                                                                        req.getString()));
+                participantIds.add(participantId);
+                return result.putLong(participantId);
+            case Protocol.RESUME:
+                Credentials credentials = new Credentials(req.getString(), req.getString());
+                long previousId = req.getLong();
+                Map<String, Long> lastSeen = new HashMap<>();
+                for (int rooms = req.getInt(); rooms > 0; rooms--) {
+                    lastSeen.put(req.getString(), req.getLong());
+                }
+                long resumedId = server.resume(this, credentials, previousId, lastSeen);
+                participantIds.add(resumedId);
+                return result.putLong(resumedId);
+            case Protocol.CHANGE_NICKNAME:
+                server.changeNickname(req.getLong(), req.getString());
+                return result;
+            case Protocol.BROADCAST:
+                server.broadcastMsg(req.getLong(), req.getString(), req.getString());
+                return result;
+            case Protocol.DIRECT_MESSAGE:
+                server.sendDirectMsg(req.getLong(), req.getString(), req.getString());
+                return result;
+            case Protocol.JOIN_ROOM:
+                server.joinRoom(req.getLong(), req.getString());
+                return result;
+            case Protocol.LEAVE_ROOM:
+                server.leaveRoom(req.getLong(), req.getString());
+                return result;
+            case Protocol.LIST_ROOMS:
+                return result.putStrings(server.listRooms());
+            case Protocol.GET_HISTORY:
+                HistoryPage page = server.getHistory(req.getLong(), req.getString(),
+                                                     req.getLong(), req.getInt());
+                return result.putStrings(page.getEntries()).putLong(page.getCursor())
+                        .putBoolean(page.hasMore());
+            case Protocol.SEARCH:
+                HistoryPage matches = server.search(req.getLong(), req.getString(),
+                                                    req.getString(), req.getString(),
+                                                    req.getLong(), req.getInt());
+                return result.putStrings(matches.getEntries()).putLong(matches.getCursor())
+                        .putBoolean(matches.hasMore());
+            case Protocol.PING:
+                server.ping(req.getLong());
+                return result;
+            case Protocol.LEAVE_CONVERSATION:
+                long leavingId = req.getLong();
+                server.leaveConversation(leavingId);
+                participantIds.remove(leavingId);
+                return result;
+            default:
+                throw new IOException("Unknown request type: " + req.getType());
+        }
+    }
+
+    private boolean isBackedUp() {
+        return requests.size() >= MAX_QUEUED_REQUESTS || outboundBytes.get() > MAX_OUTBOUND_BYTES;
+    }
+
+    private void resumeReading() {
+        if (readPaused.compareAndSet(true, false)) {
+            try {
+                key.interestOpsOr(SelectionKey.OP_READ);
+                key.selector().wakeup();
+            } catch (CancelledKeyException closedMeanwhile) {
+            }
+        }
+    }
+
+    private void enqueue(FrameWriter frame) {
+        ByteBuffer buf = frame.toBuffer();
+        outboundBytes.addAndGet(buf.remaining());
+        outbound.add(buf);
+        try {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        } catch (CancelledKeyException closedMeanwhile) {
+            outbound.clear();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Leif Lindbäck <leifl@kth.se>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package se.kth.id1212.rmi.server.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import se.kth.id1212.rmi.common.ChatServer;
+
+/**
+ * Accepts chat clients over plain sockets, speaking the framed protocol defined in
+ * <code>Protocol</code>. This is an alternative to RMI, which calls the same chat server.
+ * <p>
+ * All sockets are handled by one selector thread, which only reads and writes frames. Requests
+ * are executed by each connection in its own virtual thread, since a request may block, for
+ * example while a persistent conversation is forced to disk.
+ */
+public class SocketServer {
+    private final ChatServer server;
+    private final int port;
+    private Selector selector;
+    private ServerSocketChannel listeningChannel;
+
+    /**
+     * Creates a new instance, which does not accept clients until it is started.
+     *
+     * @param server All requests are executed by this chat server.
+     * @param port   The port on which clients are accepted.
+     */
+    public SocketServer(ChatServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Starts accepting clients. This method returns immediately, clients are served by a
+     * separate thread.
+     *
+     * @throws IOException If the listening socket could not be opened.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        listeningChannel = ServerSocketChannel.open();
+        listeningChannel.configureBlocking(false);
+        listeningChannel.bind(new InetSocketAddress(port));
+        listeningChannel.register(selector, SelectionKey.OP_ACCEPT);
+        Thread.ofPlatform().name("socket-server").daemon().start(this::serve);
+    }
+
+    /**
+     * Stops accepting clients, and closes all connections.
+     *
+     * @throws IOException If the listening socket could not be closed.
+     */
+    public void stop() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        listeningChannel.close();
+        selector.close();
+    }
+
+    private void serve() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handle(key);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Socket server failed: " + ioe.getMessage());
+            } catch (RuntimeException closedWhileSelecting) {
+                if (selector.isOpen()) {
+                    throw closedWhileSelecting;
+                }
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            acceptClient();
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.readFrames();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.writeFrames();
+            }
+        } catch (IOException connectionFailed) {
+            connection.close();
+        }
+    }
+
+    private void acceptClient() throws IOException {
+        SocketChannel channel = listeningChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(server, channel, key));
+    }
+}
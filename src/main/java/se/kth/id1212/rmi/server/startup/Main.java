@@ -23,30 +23,196 @@
  */
 package se.kth.id1212.rmi.server.startup;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import se.kth.id1212.rmi.common.Protocol;
 import se.kth.id1212.rmi.server.controller.Controller;
+import se.kth.id1212.rmi.server.federation.Federation;
+import se.kth.id1212.rmi.server.integration.ConversationJournal;
+import se.kth.id1212.rmi.server.metrics.ServerMetrics;
+import se.kth.id1212.rmi.server.model.Conversation;
+import se.kth.id1212.rmi.server.model.ConversationFactory;
+import se.kth.id1212.rmi.server.model.DeliveryPolicy;
+import se.kth.id1212.rmi.server.model.FloodControl;
+import se.kth.id1212.rmi.server.net.SocketServer;
 
 /**
- * Starts the chat servant and binds it in the RMI registry.
+ * Starts the chat servant and binds it in the RMI registry. The servant is configured with the
+ * following system properties, all of which are optional.
+ * <ul>
+ * <li><code>chat.retention.maxEntries</code> The maximum number of retained entries in the
+ * conversation of each room.</li>
+ * <li><code>chat.retention.maxBytes</code> The maximum size, in bytes, of all retained entries in
+ * the conversation of each room.</li>
+ * <li><code>chat.retention.maxAgeSeconds</code> The maximum age, in seconds, of retained
+ * conversation entries.</li>
+ * <li><code>chat.journal.dir</code> The directory holding conversation journals, one file for each
+ * room. If this property is set, conversations are persistent, and all rooms with a journal are
+ * restored when the server is started.</li>
+ * <li><code>chat.delivery.queueCapacity</code> The maximum number of undelivered messages to a
+ * participant.</li>
+ * <li><code>chat.delivery.overflow</code> What happens to messages sent to a participant whose
+ * queue is full, <code>DROP_NEWEST</code>, <code>DROP_OLDEST</code> or
+ * <code>SUMMARIZE</code>.</li>
+ * <li><code>chat.delivery.maxFailures</code> A participant is disconnected after this many failed
+ * deliveries in a row.</li>
+ * <li><code>chat.delivery.maxLagSeconds</code> A participant is disconnected when the oldest
+ * undelivered message has waited this many seconds.</li>
+ * <li><code>chat.delivery.maxLatencyMillis</code> A participant is disconnected when the smoothed
+ * average duration of calls to its remote node exceeds this many milliseconds. Zero means there is
+ * no such limit. The default is 10 000 milliseconds.</li>
+ * <li><code>chat.delivery.leaseSeconds</code> A participant is disconnected when it has neither
+ * pinged the server, broadcasted a message nor received a message for this many seconds. Zero
+ * means participants are never disconnected for being idle. The default is 90 seconds.</li>
+ * <li><code>chat.delivery.fanOutThreads</code> The number of threads that place a message
+ * broadcasted in a large room in the members' outbound queues. The default is the number of
+ * available processors.</li>
+ * <li><code>chat.delivery.threads</code> How calls to participants' remote nodes are executed.
+ * Either <code>virtual</code>, which executes each call in its own virtual thread, or the number
+ * of platform threads in a fixed thread pool. The default is <code>virtual</code>.</li>
+ * <li><code>chat.metrics.file</code> If this property is set, the server metrics are periodically
+ * written to this file. The metrics are always available as the MXBean
+ * <code>se.kth.id1212.rmi:type=ServerMetrics</code>.</li>
+ * <li><code>chat.flood.rate</code> The sustained number of messages per second that one
+ * participant may broadcast. Zero means there is no limit.</li>
+ * <li><code>chat.flood.burst</code> The number of messages one participant may broadcast at
+ * once.</li>
+ * <li><code>chat.flood.globalRate</code> The sustained number of messages per second that all
+ * participants together may broadcast. Zero means there is no limit.</li>
+ * <li><code>chat.flood.globalBurst</code> The number of messages all participants together may
+ * broadcast at once.</li>
+ * <li><code>chat.node.name</code> The name under which the server is bound in the RMI registry.
+ * The default is the name clients look up by default, <code>CHAT_SERVER</code>.</li>
+ * <li><code>chat.federation.peers</code> A comma separated list of the other servers in a
+ * federation, for example <code>//localhost/node2,//localhost/node3</code>. If this property is
+ * set, messages are relayed between this server and those servers, and participants at all of
+ * them share the same rooms. Several servers on the same host share one RMI registry, which is
+ * started by the first server.</li>
+ * <li><code>chat.transport</code> How clients reach the server. Either <code>rmi</code>, which
+ * binds the server in the RMI registry, <code>socket</code>, which accepts clients speaking the
+ * framed protocol over plain sockets, or <code>both</code>. The default is <code>rmi</code>.</li>
+ * <li><code>chat.socket.port</code> The port on which socket clients are accepted. The default is
+ * 4712.</li>
+ * <li><code>chat.metrics.intervalSeconds</code> How often the metrics file is written. The default
+ * is 60 seconds.</li>
+ * </ul>
  */
 public class Main {
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final String VIRTUAL_THREADS = "virtual";
+    private static final long DEFAULT_METRICS_INTERVAL_SECONDS = 60;
+    private static final String RMI_TRANSPORT = "rmi";
+    private static final String SOCKET_TRANSPORT = "socket";
+    private static final String BOTH_TRANSPORTS = "both";
+
     /**
      * @param args There are no command line arguments.
      */
     public static void main(String[] args) {
         try {
-            new Main().startRegistry();
-            Naming.rebind(Controller.SERVER_NAME_IN_REGISTRY, new Controller());
+            String transport = System.getProperty("chat.transport", RMI_TRANSPORT);
+            Controller contr = new Controller(new ConfiguredConversationFactory(),
+                                              createDeliveryPolicy(), createFloodControl(),
+                                              createDeliveryExecutor());
+            publishMetrics(contr.getMetrics());
+            String nodeName = System.getProperty("chat.node.name",
+                                                 Controller.SERVER_NAME_IN_REGISTRY);
+            String peers = System.getProperty("chat.federation.peers");
+            if (transport.equals(RMI_TRANSPORT) || transport.equals(BOTH_TRANSPORTS)
+                || peers != null) {
+                new Main().startRegistry();
+            }
+            if (peers != null) {
+                Federation federation = new Federation(nodeName, Arrays.asList(peers.split(",")));
+                Naming.rebind(nodeName + Federation.PEER_NAME_SUFFIX, federation);
+                contr.joinFederation(federation);
+            }
+            if (transport.equals(RMI_TRANSPORT) || transport.equals(BOTH_TRANSPORTS)) {
+                Naming.rebind(nodeName, contr);
+            }
+            if (transport.equals(SOCKET_TRANSPORT) || transport.equals(BOTH_TRANSPORTS)) {
+                new SocketServer(contr, Integer.getInteger("chat.socket.port",
+                                                           Protocol.DEFAULT_PORT)).start();
+            }
             System.out.println("Server is running.");
-        } catch (MalformedURLException | RemoteException ex) {
+        } catch (IOException | JMException ex) {
             System.out.println("Could not start chat server.");
         }
     }
+
+    private static void publishMetrics(ServerMetrics metrics) throws JMException {
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(metrics, new ObjectName(ServerMetrics.OBJECT_NAME));
+        String metricsFile = System.getProperty("chat.metrics.file");
+        if (metricsFile == null) {
+            return;
+        }
+        long interval = Long.getLong("chat.metrics.intervalSeconds",
+                                     DEFAULT_METRICS_INTERVAL_SECONDS);
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(
+                task -> Thread.ofPlatform().name("metrics-dumper").daemon().unstarted(task));
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                metrics.dumpToFile(metricsFile);
+            } catch (UncheckedIOException ioe) {
+                System.out.println("Could not write metrics to " + metricsFile + ".");
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
     
+    private static DeliveryPolicy createDeliveryPolicy() {
+        DeliveryPolicy defaults = DeliveryPolicy.DEFAULT;
+        return new DeliveryPolicy(
+                Integer.getInteger("chat.delivery.queueCapacity", defaults.getQueueCapacity()),
+                DeliveryPolicy.Overflow.valueOf(System.getProperty(
+                        "chat.delivery.overflow", defaults.getOverflow().name())),
+                Integer.getInteger("chat.delivery.maxFailures",
+                                   defaults.getMaxConsecutiveFailures()),
+                Long.getLong("chat.delivery.maxLagSeconds",
+                             defaults.getMaxLagMillis() / MILLIS_PER_SECOND) * MILLIS_PER_SECOND,
+                Long.getLong("chat.delivery.maxLatencyMillis", defaults.getMaxLatencyMillis()),
+                Long.getLong("chat.delivery.leaseSeconds",
+                             defaults.getLeaseMillis() / MILLIS_PER_SECOND) * MILLIS_PER_SECOND,
+                Integer.getInteger("chat.delivery.fanOutThreads", defaults.getFanOutThreads()));
+    }
+
+    private static FloodControl createFloodControl() {
+        FloodControl defaults = FloodControl.DEFAULT;
+        return new FloodControl(
+                Double.parseDouble(System.getProperty(
+                        "chat.flood.rate", Double.toString(defaults.getParticipantRate()))),
+                Integer.getInteger("chat.flood.burst", defaults.getParticipantBurst()),
+                Double.parseDouble(System.getProperty(
+                        "chat.flood.globalRate", Double.toString(defaults.getGlobalRate()))),
+                Integer.getInteger("chat.flood.globalBurst", defaults.getGlobalBurst()));
+    }
+
+    private static ExecutorService createDeliveryExecutor() {
+        String threads = System.getProperty("chat.delivery.threads", VIRTUAL_THREADS);
+        if (threads.equals(VIRTUAL_THREADS)) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(Integer.parseInt(threads));
+    }
+
     private void startRegistry() throws RemoteException {
         try {
             LocateRegistry.getRegistry().list();
@@ -54,4 +220,44 @@ public class Main {
             LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
         }
     }
+
+    private static class ConfiguredConversationFactory implements ConversationFactory {
+        private static final String JOURNAL_SUFFIX = ".journal";
+        private final long maxEntries = Long.getLong("chat.retention.maxEntries",
+                                                     Conversation.DEFAULT_MAX_ENTRIES);
+        private final long maxBytes = Long.getLong("chat.retention.maxBytes",
+                                                   Conversation.DEFAULT_MAX_BYTES);
+        private final long maxAgeMillis = Long.getLong(
+                "chat.retention.maxAgeSeconds",
+                Conversation.DEFAULT_MAX_AGE_MILLIS / MILLIS_PER_SECOND) * MILLIS_PER_SECOND;
+        private final String journalDir = System.getProperty("chat.journal.dir");
+
+        @Override
+        public Conversation createConversation(String roomName) throws IOException {
+            if (journalDir == null) {
+                return new Conversation(maxEntries, maxBytes, maxAgeMillis);
+            }
+            Path journalFile = Files.createDirectories(Paths.get(journalDir))
+                    .resolve(roomName + JOURNAL_SUFFIX);
+            return new Conversation(maxEntries, maxBytes, maxAgeMillis,
+                                    new ConversationJournal(journalFile));
+        }
+
+        @Override
+        public List<String> listStoredRooms() throws IOException {
+            List<String> roomNames = new ArrayList<>();
+            if (journalDir == null || !Files.isDirectory(Paths.get(journalDir))) {
+                return roomNames;
+            }
+            try (DirectoryStream<Path> journals
+                    = Files.newDirectoryStream(Paths.get(journalDir), "*" + JOURNAL_SUFFIX)) {
+                for (Path journal : journals) {
+                    String fileName = journal.getFileName().toString();
+                    roomNames.add(fileName.substring(0, fileName.length()
+                                                        - JOURNAL_SUFFIX.length()));
+                }
+            }
+            return roomNames;
+        }
+    }
 }